@@ -0,0 +1,130 @@
+package com.hydna;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ *  Helpers shared by the benchmarks. A connection created here is never
+ *  connected to a server. It is marked as connected, so that frames can
+ *  be fed to processFrames from memory, and channels are attached to it
+ *  as if they had been opened.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     *  Create a connection that processes frames from memory.
+     *
+     *  @return The connection.
+     */
+    static Connection newConnection() throws ReflectiveOperationException {
+        Connection connection;
+
+        HydnaConfig.setJmxEnabled(false);
+
+        connection = new Connection(new Endpoint("localhost", 7010), 0);
+
+        set(connection, "m_connected", Boolean.TRUE);
+        set(connection, "m_allocator",
+            new ChunkAllocator(HydnaConfig.getReceiveChunkSize(), false));
+
+        return connection;
+    }
+
+    /**
+     *  Attach a channel to a connection, as if it had been opened.
+     *
+     *  @param connection The connection.
+     *  @param channelPtr The pointer of the channel.
+     *  @param channel The channel.
+     */
+    @SuppressWarnings("unchecked")
+    static void attach(Connection connection, int channelPtr, Channel channel)
+        throws ReflectiveOperationException {
+        Field field = Connection.class.getDeclaredField("m_openChannels");
+        field.setAccessible(true);
+        ((Map<Integer, Channel>)field.get(connection)).put(channelPtr,
+                                                           channel);
+
+        set(channel, "m_connection", connection);
+        set(channel, "m_channelPtr", channelPtr);
+        set(channel, "m_connected", Boolean.TRUE);
+    }
+
+    /**
+     *  Encode frames into one buffer, as they would arrive in a read.
+     *
+     *  @param channelPtr The pointer of the frames.
+     *  @param op The opcode of the frames.
+     *  @param flag The flag of the frames.
+     *  @param size The payload size of each frame.
+     *  @param count The number of frames.
+     *  @return A buffer with the frames between position and limit.
+     */
+    static ByteBuffer frames(int channelPtr,
+                             int op,
+                             int flag,
+                             int size,
+                             int count) {
+        ByteBuffer payload;
+        ByteBuffer buffer;
+        Frame frame;
+
+        payload = payload(size);
+        buffer = ByteBuffer.allocate(count * (Frame.ENCODED_HEADER_SIZE +
+                                              size));
+
+        for (int i = 0; i < count; i++) {
+            frame = Frame.create(channelPtr, ContentType.BINARY,
+                                 op, flag, payload);
+            frame.encodeHeader(buffer);
+            buffer.put(frame.getPayload());
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     *  Create a payload of ASCII letters.
+     *
+     *  @param size The size of the payload.
+     *  @return The payload.
+     */
+    static ByteBuffer payload(int size) {
+        ByteBuffer payload = ByteBuffer.allocate(size);
+
+        for (int i = 0; i < size; i++) {
+            payload.put((byte)('a' + i % 26));
+        }
+
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     *  Remove all queued events of a channel.
+     *
+     *  @param channel The channel to drain.
+     *  @return The number of events removed.
+     */
+    static int drain(Channel channel) {
+        int count = 0;
+
+        while (channel.pollEvent() != null) {
+            count++;
+        }
+
+        return count;
+    }
+
+    private static void set(Object target, String name, Object value)
+        throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
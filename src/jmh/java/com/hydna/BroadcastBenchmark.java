@@ -0,0 +1,73 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Fan-out of frames sent to all channels of a connection. The payload
+ *  of each broadcast is copied once and shared by the channels. Results
+ *  are per broadcast frame, including polling the events of every
+ *  channel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+
+    private static final int FRAMES = 16;
+
+    @Param({"1", "16", "256"})
+    int channels;
+
+    @Param({"64", "1024"})
+    int payloadSize;
+
+    private Connection m_connection;
+    private Channel[] m_channels;
+    private ByteBuffer m_frames;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        m_connection = BenchmarkSupport.newConnection();
+        m_channels = new Channel[channels];
+
+        for (int i = 0; i < channels; i++) {
+            m_channels[i] = new Channel();
+            BenchmarkSupport.attach(m_connection, i + 1, m_channels[i]);
+        }
+
+        m_frames = BenchmarkSupport.frames(0, Frame.DATA, 0,
+                                           payloadSize, FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int broadcast() {
+        int count = 0;
+
+        m_frames.rewind();
+        m_connection.processFrames(m_frames);
+
+        for (Channel channel : m_channels) {
+            count += BenchmarkSupport.drain(channel);
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,60 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Decoding of UTF-8 event content with ChannelEvent.getString, for
+ *  ASCII text and for text with multi-byte characters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int length;
+
+    @Param({"ascii", "multibyte"})
+    String text;
+
+    private ChannelEvent m_event;
+
+    @Setup
+    public void setup() {
+        String unit = text.equals("ascii") ? "hydna" : "h\u00e5dna\u2603";
+        StringBuilder builder = new StringBuilder();
+        ByteBuffer data;
+
+        while (builder.length() < length) {
+            builder.append(unit);
+        }
+
+        builder.setLength(length);
+
+        data = ByteBuffer.wrap(builder.toString()
+                                      .getBytes(StandardCharsets.UTF_8));
+        m_event = new ChannelData(new Channel(), ContentType.UTF8, 0, data);
+    }
+
+    @Benchmark
+    public String getString() {
+        return m_event.getString();
+    }
+}
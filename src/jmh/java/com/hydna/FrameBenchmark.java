@@ -0,0 +1,65 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Encoding of outgoing frames. The connection writes the header and
+ *  the payload with one gathering write, so encodeHeader is the cost
+ *  paid per frame. encodeFlat copies the payload after the header, as a
+ *  plain write would, for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+    @Param({"1", "64", "1024", "16384", "65530"})
+    int payloadSize;
+
+    private ByteBuffer m_payload;
+    private ByteBuffer m_header;
+    private ByteBuffer m_flat;
+
+    @Setup
+    public void setup() {
+        m_payload = BenchmarkSupport.payload(payloadSize);
+        m_header = ByteBuffer.allocate(Frame.ENCODED_HEADER_SIZE);
+        m_flat = ByteBuffer.allocate(Frame.ENCODED_HEADER_SIZE +
+                                     payloadSize);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeHeader() {
+        Frame frame = Frame.create(1, ContentType.BINARY,
+                                   Frame.DATA, 0, m_payload);
+        m_header.clear();
+        frame.encodeHeader(m_header);
+        return m_header;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFlat() {
+        Frame frame = Frame.create(1, ContentType.BINARY,
+                                   Frame.DATA, 0, m_payload);
+        m_flat.clear();
+        frame.encodeHeader(m_flat);
+        m_flat.put(frame.getPayload());
+        return m_flat;
+    }
+}
@@ -0,0 +1,100 @@
+package com.hydna;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  The handoff of events from the thread that receives data to a
+ *  consumer calling nextEvent. addThenNext measures the uncontended
+ *  cost on one thread. The handoff group runs a producer and a consumer
+ *  on two threads, with the producer held back when the queue reaches
+ *  a fixed depth.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Group)
+public class HandoffBenchmark {
+
+    private static final int MAX_DEPTH = 4096;
+
+    @Param({"linked", "ring"})
+    String queue;
+
+    @Param({"BLOCKING", "BUSY_SPIN"})
+    String waitStrategy;
+
+    private Channel m_channel;
+    private ChannelEvent m_event;
+
+    @Setup
+    public void setup() throws ChannelError, ReflectiveOperationException {
+        m_channel = new Channel();
+
+        if (queue.equals("ring")) {
+            m_channel.setRingBuffer(MAX_DEPTH * 2);
+        }
+
+        m_channel.setWaitStrategy(waitStrategy.equals("BUSY_SPIN") ?
+                                  WaitStrategy.BUSY_SPIN :
+                                  WaitStrategy.BLOCKING);
+
+        // Events added to a ring are dropped unless the channel is
+        // attached to a connection
+        BenchmarkSupport.attach(BenchmarkSupport.newConnection(),
+                                1,
+                                m_channel);
+
+        m_event = new ChannelData(m_channel, ContentType.BINARY, 0,
+                                  BenchmarkSupport.payload(64));
+    }
+
+    @Benchmark
+    @Group("single")
+    public ChannelEvent addThenNext()
+        throws ChannelError, InterruptedException {
+        add();
+        return m_channel.nextEvent();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public void produce() {
+        while (m_channel.getMetrics().getQueueDepth() >= MAX_DEPTH) {
+            Thread.onSpinWait();
+        }
+        add();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public ChannelEvent consume()
+        throws ChannelError, InterruptedException {
+        // Bounded, so that the consumer does not outlive the producer
+        // at the end of an iteration
+        return m_channel.nextEvent(1, TimeUnit.MILLISECONDS);
+    }
+
+    private void add() {
+        if (m_channel.addEvent(m_event)) {
+            m_channel.publishEvents();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *  Header parsing and dispatch of received frames. A batch of frames,
+ *  as one read from the socket would return them, is fed to
+ *  processFrames, which copies the payloads and queues an event per
+ *  frame on the channel. The queued events are polled after each batch.
+ *  Results are per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class ReceiveBenchmark {
+
+    private static final int FRAMES = 64;
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    @Param({"DATA", "SIGNAL"})
+    String op;
+
+    private Connection m_connection;
+    private Channel m_channel;
+    private ByteBuffer m_frames;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        int opcode = op.equals("DATA") ? Frame.DATA : Frame.SIGNAL;
+
+        m_connection = BenchmarkSupport.newConnection();
+        m_channel = new Channel();
+        BenchmarkSupport.attach(m_connection, 1, m_channel);
+
+        m_frames = BenchmarkSupport.frames(1, opcode, 0, payloadSize, FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int processFrames() {
+        m_frames.rewind();
+        m_connection.processFrames(m_frames);
+        return BenchmarkSupport.drain(m_channel);
+    }
+}
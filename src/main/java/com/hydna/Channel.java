@@ -4,12 +4,16 @@ import java.io.UnsupportedEncodingException;
 
 import java.nio.ByteBuffer;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -25,23 +29,35 @@ public class Channel {
     private Connection m_connection = null;
     private boolean m_connected = false;
     private boolean m_closing = false;
+    private boolean m_resuming = false;
 
     private int m_mode;
 
     private Queue<ChannelSignal> m_signalQueue;
-    private Queue<ChannelEvent> m_eventQueue = null;
+    private EventQueue m_eventQueue = null;
+    private ChannelMetrics m_metrics;
 
-    private ChannelEvent m_openEvent = null;
-    private ChannelEvent m_endEvent = null;
-    private ChannelError m_error = null;
+    private OpenRequest m_openRequest = null;
+    private CompletableFuture<ChannelEvent> m_connectFuture = null;
 
-    private final Semaphore m_waitLock = new Semaphore(0, true);
+    private volatile ChannelEvent m_endEvent = null;
+    private volatile ChannelError m_error = null;
+    private ChannelError m_failure = null;
+
+    private ListenerDispatcher m_dispatcher = null;
+
+    // Only accessed on the event loop thread
+    private boolean m_publishPending = false;
+    private EventSubscription m_subscription = null;
+
+    private final EventWaiter m_waiter = new EventWaiter();
 
     /**
      *  Initializes a new Channel instance
      */
     public Channel() {
-        m_eventQueue = new ConcurrentLinkedQueue<ChannelEvent>();
+        m_eventQueue = new EventQueue();
+        m_metrics = new ChannelMetrics(m_eventQueue);
     }
 
     /**
@@ -90,6 +106,7 @@ public class Channel {
     synchronized public boolean isWritable() {
         return m_connected &&
                m_closing == false &&
+               m_resuming == false &&
                ((m_mode & ChannelMode.WRITE) == ChannelMode.WRITE);
     }
 
@@ -101,6 +118,7 @@ public class Channel {
     synchronized public boolean isEmitable() {
         return m_connected &&
                m_closing == false &&
+               m_resuming == false &&
                ((m_mode & ChannelMode.EMIT) == ChannelMode.EMIT);
     }
 
@@ -128,17 +146,54 @@ public class Channel {
      *  Connects the channel to the specified channel. If the connection 
      *  fails, an exception is thrown.
      *
+     *  The method is blocking until the channel is open. See
+     *  connectAsync for a non-blocking alternative.
+     *
      *  @param urlExpr The URL to connect to,
      *  @param mode The mode in which to open the channel.
-     *  @param token An optional token.
+     *  @return The open event, containing an optional welcome message.
      */
     public ChannelEvent connect(String urlExpr, int mode)
         throws ChannelError, InterruptedException {
+        CompletableFuture<ChannelEvent> future;
+        Throwable cause;
+
+        future = connectAsync(urlExpr, mode);
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            cause = e.getCause();
+
+            if (cause instanceof ChannelError) {
+                throw (ChannelError)cause;
+            }
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+
+            throw new ChannelError(String.valueOf(cause.getMessage()));
+        }
+    }
+
+    /**
+     *  Connects the channel to the specified channel without blocking
+     *  while the channel is resolved and opened. The returned future is
+     *  completed from the receive path once the open response arrives,
+     *  or completed exceptionally with a ChannelError if the open fails.
+     *
+     *  @param urlExpr The URL to connect to,
+     *  @param mode The mode in which to open the channel.
+     *  @return A future that holds the open event.
+     */
+    public CompletableFuture<ChannelEvent> connectAsync(String urlExpr,
+                                                        int mode)
+        throws ChannelError {
+        CompletableFuture<ChannelEvent> future;
         Connection connection;
-        Frame frame;
         OpenRequest request;
-        ChannelEvent openEvent;
-        ChannelError error;
+        Frame frame;
         ByteBuffer token = null;
         ByteBuffer path = null;
   
@@ -164,9 +219,6 @@ public class Channel {
   
         URL url = URL.parse(urlExpr);
         String tokens = "";
-        String chs = "";
-        int ch;
-        int pos;
     
         // Host can be on the form "http://auth@localhost:80/x00112233?token"
     
@@ -203,12 +255,6 @@ public class Channel {
 
         tokens = url.getToken();
 
-        connection = Connection.getConnection(url.getHost(), url.getPort());
-        m_connection = connection;
-
-        // Ref count
-        connection.allocChannel();
-
         if (tokens != "") {
             try {
                 token = ByteBuffer.wrap(tokens.getBytes("UTF-8"));
@@ -216,56 +262,40 @@ public class Channel {
                 throw new ChannelError("Unable to encode token data");
             }
         }
- 
-        request = new OpenRequest(this, path, mode, token);
-
-        connection.requestOpen(request);
 
-        connection.writeBytes(request.getResolveFrame());
+        connection = Connection.getConnection(url.getHost(),
+                                              url.getPort(),
+                                              m_path);
 
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Channel",
-                                   0,
-                                   "Acquire waitLock");
-        }
-
-        m_waitLock.acquire();
+        request = new OpenRequest(this, path, mode, token);
+        future = new CompletableFuture<ChannelEvent>();
 
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Channel",
-                                   0,
-                                   "release waitLock");
+        synchronized (this) {
+            m_connection = connection;
+            m_openRequest = request;
+            m_connectFuture = future;
         }
 
-        if ((error = resetError()) != null) {
-            throw error;
+        try {
+            // Ref count
+            connection.allocChannel();
+            frame = connection.requestOpen(request);
+        } catch (ChannelError e) {
+            destroy(e);
+            throw e;
         }
 
-        connection.writeBytes(request.getFrame());
-
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Channel",
                                    0,
-                                   "Acquire waitLock after resolve");
-        }
-
-        m_waitLock.acquire();
-
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Channel",
-                                   getChannelPtr(),
-                                   "Release waitLock after resolve");
+                                   request.isCached() ?
+                                   "Sending open request" :
+                                   "Sending resolve request");
         }
 
-        if ((error = resetError()) != null) {
-            throw error;
-        }
-
-        openEvent = m_openEvent;
+        connection.writeBytes(frame);
 
-        m_openEvent = null;
-
-        return openEvent;
+        return future;
     }
 
     /**
@@ -274,32 +304,134 @@ public class Channel {
      *  or a ChannelEndSignal instance.
      *
      *  The method is blocking until an Event has arrived, if queue
-     *  is empty.
+     *  is empty. How it waits is set with setWaitStrategy.
      *
-     *  @return The ChannelEvent that was removed from the queue,
-     *          or NULL if the queue was empty.
+     *  @return The ChannelEvent that was removed from the queue.
      */
     public ChannelEvent nextEvent()
         throws ChannelError, InterruptedException {
+        return nextEvent(-1);
+    }
+
+    /**
+     *  Pop the next ChannelEvent in the event queue. The method is
+     *  blocking until an Event has arrived, or the timeout has passed.
+     *
+     *  @param timeout The max time to wait.
+     *  @param unit The unit of timeout.
+     *  @return The ChannelEvent that was removed from the queue, or null
+     *          if the timeout passed before an event arrived.
+     */
+    public ChannelEvent nextEvent(long timeout, TimeUnit unit)
+        throws ChannelError, InterruptedException {
+        return nextEvent(Math.max(unit.toNanos(timeout), 0));
+    }
+
+    /**
+     *  Move up to max queued events to the sink, without blocking. The
+     *  pending error and end signal are checked once for the whole batch,
+     *  which makes this cheaper than calling nextEvent() once per event.
+     *
+     *  If the channel has an end signal pending, only the end signal is
+     *  moved to the sink.
+     *
+     *  @param sink The collection to add the events to.
+     *  @param max The max number of events to move.
+     *  @return The number of events moved to the sink.
+     */
+    public int drainEvents(Collection<? super ChannelEvent> sink, int max)
+        throws ChannelError {
         ChannelEvent event;
         ChannelError error;
+        int count = 0;
 
-        if ((error = resetError()) != null) {
+        synchronized (this) {
+            error = m_error;
+            event = m_endEvent;
+            m_error = null;
+            m_endEvent = null;
+        }
+
+        if (error != null) {
             throw error;
         }
 
-        if ((event = resetEndEvent()) != null) {
-            return event;
+        if (event != null) {
+            sink.add(event);
+            return 1;
         }
 
-        event = m_eventQueue.poll();
+        while (count < max && (event = pollEvent()) != null) {
+            sink.add(event);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     *  Move up to max queued events to the sink. The method is blocking
+     *  until at least one event has arrived, or the timeout has passed.
+     *
+     *  @param sink The collection to add the events to.
+     *  @param max The max number of events to move.
+     *  @param timeout The max time to wait.
+     *  @param unit The unit of timeout.
+     *  @return The number of events moved to the sink, or 0 if the
+     *          timeout passed before an event arrived.
+     */
+    public int awaitEvents(Collection<? super ChannelEvent> sink,
+                           int max,
+                           long timeout,
+                           TimeUnit unit)
+        throws ChannelError, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long sequence;
+        int count;
+
+        for (;;) {
+            sequence = m_waiter.sequence();
 
-        if (event == null) {
-            m_waitLock.acquire();
-            return nextEvent();
+            if ((count = drainEvents(sink, max)) > 0) {
+                return count;
+            }
+
+            if (m_waiter.await(sequence,
+                               Math.max(deadline - System.nanoTime(), 0))
+                == false) {
+                return 0;
+            }
         }
+    }
 
-        return event;
+    /**
+     *  Set how threads wait in nextEvent() and awaitEvents() for an event
+     *  to arrive. One of the constants in WaitStrategy:
+     *
+     *  BLOCKING, the default, blocks the thread until it is signalled.
+     *  YIELDING spins for a short while, and then yields the processor
+     *  between checks.
+     *  BUSY_SPIN checks continuously, and gives the lowest latency at the
+     *  cost of a processor core per waiting thread.
+     *  TIMED_PARK parks the thread for short periods between checks.
+     *
+     *  @param strategy The wait strategy.
+     */
+    public void setWaitStrategy(int strategy) {
+        if (strategy < WaitStrategy.BLOCKING ||
+            strategy > WaitStrategy.TIMED_PARK) {
+            throw new IllegalArgumentException("Invalid wait strategy");
+        }
+        m_waiter.setStrategy(strategy);
+    }
+
+    /**
+     *  Returns how threads wait for an event to arrive.
+     *
+     *  @return The wait strategy.
+     */
+    public int getWaitStrategy() {
+        return m_waiter.getStrategy();
     }
 
     /**
@@ -321,6 +453,233 @@ public class Channel {
         return m_eventQueue.isEmpty() != true;
     }
 
+    /**
+     *  Limit the number of events that are queued for nextEvent(). When
+     *  an event arrives and the queue is full, the overflow policy of the
+     *  channel decides what happens. Events delivered to a listener are
+     *  not queued, and are not limited. Both limits default to zero,
+     *  which means unlimited.
+     *
+     *  @param events The max number of queued events, or zero.
+     *  @param bytes The max number of queued payload bytes, or zero.
+     */
+    public void setEventQueueCapacity(int events, long bytes) {
+        if (events < 0 || bytes < 0) {
+            throw new IllegalArgumentException("Capacity cannot be " +
+                                               "negative");
+        }
+        m_eventQueue.setCapacity(events, bytes);
+    }
+
+    /**
+     *  Returns the max number of queued events.
+     *
+     *  @return The max number of events, or zero if unlimited.
+     */
+    public int getEventQueueCapacity() {
+        return m_eventQueue.getMaxEvents();
+    }
+
+    /**
+     *  Returns the max number of queued payload bytes.
+     *
+     *  @return The max number of bytes, or zero if unlimited.
+     */
+    public long getEventQueueByteCapacity() {
+        return m_eventQueue.getMaxBytes();
+    }
+
+    /**
+     *  Set what happens when an event arrives and the event queue is
+     *  full. One of the constants in OverflowPolicy:
+     *
+     *  DROP_NEWEST, the default, drops the event that arrived.
+     *  DROP_OLDEST drops queued events until the new event fits.
+     *  BLOCK queues the event and stops reading from the connection
+     *  until the queue has drained. Reading stops for all channels that
+     *  share the connection.
+     *  FAIL closes the channel, and nextEvent() throws a ChannelError.
+     *
+     *  @param policy The overflow policy.
+     */
+    public void setOverflowPolicy(int policy) {
+        if (policy < OverflowPolicy.DROP_NEWEST ||
+            policy > OverflowPolicy.FAIL) {
+            throw new IllegalArgumentException("Invalid overflow policy");
+        }
+
+        synchronized (this) {
+            if (policy == OverflowPolicy.BLOCK &&
+                m_eventQueue.getRingCapacity() != 0) {
+                throw new IllegalArgumentException("BLOCK is not " +
+                                                   "supported by ring " +
+                                                   "buffers");
+            }
+            m_eventQueue.setPolicy(policy);
+        }
+    }
+
+    /**
+     *  Queue events in a preallocated ring instead of a linked queue. The
+     *  ring does not allocate per event, and the thread that receives data
+     *  hands events to the consumer once per read instead of once per
+     *  event. It suits a single consumer thread, and channels with a high
+     *  rate of events.
+     *
+     *  The size of the ring, rounded up to a power of two, is the capacity
+     *  of the event queue, and setEventQueueCapacity has no effect. The
+     *  BLOCK overflow policy is not supported.
+     *
+     *  Must be called before the channel is connected.
+     *
+     *  @param size The min number of events the ring can hold.
+     */
+    public void setRingBuffer(int size) throws ChannelError {
+        if (size < 1 || size > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid ring size");
+        }
+
+        synchronized (this) {
+            if (m_connection != null) {
+                throw new ChannelError("Already connected");
+            }
+
+            if (m_eventQueue.getPolicy() == OverflowPolicy.BLOCK) {
+                throw new IllegalArgumentException("BLOCK is not " +
+                                                   "supported by ring " +
+                                                   "buffers");
+            }
+
+            m_eventQueue.useRing(size);
+        }
+    }
+
+    /**
+     *  Returns what happens when an event arrives and the event queue is
+     *  full.
+     *
+     *  @return The overflow policy.
+     */
+    public int getOverflowPolicy() {
+        return m_eventQueue.getPolicy();
+    }
+
+    /**
+     *  Returns the number of events that were dropped because the event
+     *  queue was full.
+     *
+     *  @return The number of dropped events.
+     */
+    public long getDroppedEvents() {
+        return m_eventQueue.getDropped();
+    }
+
+    /**
+     *  Returns the smoothed round trip time of the connection of the
+     *  channel. The round trip time is measured with keepalives, see
+     *  HydnaConfig.setKeepaliveInterval.
+     *
+     *  @return The round trip time in microseconds, or -1 if unknown.
+     */
+    public long getRoundTripTime() {
+        Connection connection = getUnderlyingConnection();
+        long rtt;
+
+        if (connection == null || (rtt = connection.getRoundTripTime()) < 0) {
+            return -1;
+        }
+
+        return rtt / 1000;
+    }
+
+    /**
+     *  Returns the metrics of the channel. The metrics are also
+     *  registered with the platform MBean server while the channel is
+     *  open, see HydnaConfig.setJmxEnabled.
+     *
+     *  @return The metrics.
+     */
+    public ChannelMetricsMXBean getMetrics() {
+        return m_metrics;
+    }
+
+    /**
+     *  Install a listener that is called for every event of the channel,
+     *  on the thread that receives data from the connection. The listener
+     *  must not block. Events are delivered to the listener instead of
+     *  being queued, and events that are already queued are delivered to
+     *  it first.
+     *
+     *  @param listener The listener, or null to go back to queueing
+     *                  events for nextEvent().
+     */
+    public void setListener(ChannelListener listener) {
+        setListener(listener, null);
+    }
+
+    /**
+     *  Install a listener that is called for every event of the channel,
+     *  on the specified executor. The listener is called for one event
+     *  at a time, in the order the events were received. Events are
+     *  delivered to the listener instead of being queued, and events that
+     *  are already queued are delivered to it first.
+     *
+     *  @param listener The listener, or null to go back to queueing
+     *                  events for nextEvent().
+     *  @param executor The executor to call the listener on, or null to
+     *                  call it on the thread that receives data.
+     */
+    public void setListener(ChannelListener listener, Executor executor) {
+        ListenerDispatcher dispatcher = null;
+        ChannelEvent event;
+        boolean start = false;
+
+        if (listener != null) {
+            dispatcher = new ListenerDispatcher(listener, executor);
+        }
+
+        synchronized (this) {
+            m_dispatcher = dispatcher;
+
+            if (dispatcher != null) {
+                while ((event = pollEvent()) != null) {
+                    start |= dispatcher.offer(event);
+                }
+
+                if (m_error != null) {
+                    start |= dispatcher.offer(m_error);
+                    m_error = null;
+                } else if (m_endEvent != null) {
+                    start |= dispatcher.offer(m_endEvent);
+                    m_endEvent = null;
+                }
+            }
+        }
+
+        if (start) {
+            dispatcher.schedule();
+        }
+    }
+
+    /**
+     *  Returns a publisher of the events of the channel. The publisher
+     *  accepts one subscriber at a time. Events are delivered to it on
+     *  the thread that receives data, as long as there is outstanding
+     *  demand. Without demand, events wait in the event queue, where the
+     *  capacity and overflow policy of the channel apply. The end of the
+     *  channel is signalled with onComplete, and a channel error with
+     *  onError.
+     *
+     *  @return The publisher.
+     */
+    public Flow.Publisher<ChannelEvent> asPublisher() {
+        return new Flow.Publisher<ChannelEvent>() {
+            public void subscribe(Flow.Subscriber<? super ChannelEvent> s) {
+                Channel.this.subscribe(s);
+            }
+        };
+    }
+
     /**
      *  Sends a UTF8 data message to the channel with priority 0.
      *
@@ -339,6 +698,10 @@ public class Channel {
     /**
      *  Sends a UTF8 data message to the channel with specified priority.
      *
+     *  Priorities range from 0, the highest, to 7. When messages are
+     *  queued on a congested connection, those with a higher priority
+     *  are written first.
+     *
      *  @param data The payload to write to the channel.
      *  @param priority The priority of the payload.
      */
@@ -355,19 +718,51 @@ public class Channel {
     /**
      *  Sends a binary data message to the channel with priority 0.
      *
+     *  The bytes between the position and the limit of data are sent.
+     *  The buffer may be direct or a slice, and its position is left
+     *  unchanged. The payload is copied, so the buffer may be reused as
+     *  soon as the method returns. See sendWithoutCopy.
+     *
      *  @param data The payload to write to the channel.
      */
     public boolean send(ByteBuffer data) throws ChannelError {
-        return send(ContentType.BINARY, 0, data);
+        return send(ContentType.BINARY, 0, copyOf(data));
     }
 
     /**
      *  Sends a binary data message with specified priority.
      *
+     *  The bytes between the position and the limit of data are sent.
+     *  The buffer may be direct or a slice, and its position is left
+     *  unchanged. The payload is copied, so the buffer may be reused as
+     *  soon as the method returns. See sendWithoutCopy.
+     *
+     *  Priorities range from 0, the highest, to 7. When messages are
+     *  queued on a congested connection, those with a higher priority
+     *  are written first.
+     *
      *  @param data The payload to write to the channel.
      *  @param priority The priority of the payload.
      */
     public boolean send(ByteBuffer data, int priority) throws ChannelError {
+        return send(ContentType.BINARY, priority, copyOf(data));
+    }
+
+    /**
+     *  Sends a binary data message with specified priority, without
+     *  copying the payload.
+     *
+     *  The bytes between the position and the limit of data are sent by
+     *  the event loop after the method has returned, and there is no
+     *  notice of when that happens. The content of the buffer must
+     *  therefore never be changed afterwards, so a new buffer is needed
+     *  for each message. Use send to reuse buffers.
+     *
+     *  @param data The payload to write to the channel.
+     *  @param priority The priority of the payload.
+     */
+    public boolean sendWithoutCopy(ByteBuffer data, int priority)
+        throws ChannelError {
         return send(ContentType.BINARY, priority, data);
     }
 
@@ -388,13 +783,15 @@ public class Channel {
     }
 
     /**
-     *  Sends a binary signal to the channel.
+     *  Sends a binary signal to the channel. The bytes between the
+     *  position and the limit of data are copied and sent, so the buffer
+     *  may be reused as soon as the method returns.
      *
      *  @param data The data to write to the channel.
      *  @param type The type of the signal.
      */
     public boolean emit(ByteBuffer data) throws ChannelError {
-        return emit(ContentType.BINARY, data);
+        return emit(ContentType.BINARY, copyOf(data));
     }
 
     /**
@@ -423,26 +820,102 @@ public class Channel {
      */
     public void close(ByteBuffer data)
         throws ChannelError, InterruptedException {
-        close(ContentType.BINARY, data);
+        close(ContentType.BINARY, copyOf(data));
     }
 
     /**
-     *  Add an Event to the event queue.
+     *  Add an Event to the event queue. Called on the event loop thread
+     *  of the connection.
      *
      *  @param event The event to add to queue.
+     *  @return True if the event was added to a ring, and the caller must
+     *          call publishEvents() once the current batch is received.
+     */
+    boolean addEvent(ChannelEvent event) {
+        ListenerDispatcher dispatcher;
+        EventSubscription subscription;
+        Connection connection;
+        boolean signal = false;
+        boolean start = false;
+        int result = EventQueue.ACCEPTED;
+
+        m_metrics.eventIn(event);
+
+        synchronized (this) {
+            dispatcher = m_dispatcher;
+            subscription = m_subscription;
+            connection = m_connection;
+
+            if (m_failure != null) {
+                // Closing after an overflow
+                return false;
+            }
+
+            if (dispatcher != null) {
+                start = dispatcher.offer(event);
+            } else {
+                result = m_eventQueue.offer(event);
+                signal = result != EventQueue.DROPPED;
+            }
+        }
+
+        if (result == EventQueue.PUBLISH) {
+            // Published once the current batch has been received
+            if (m_publishPending) {
+                return false;
+            }
+            m_publishPending = true;
+            return true;
+        }
+
+        if (start) {
+            dispatcher.schedule();
+        }
+
+        if (result == EventQueue.PAUSE && connection != null) {
+            connection.pauseReading();
+        }
+
+        if (result == EventQueue.OVERFLOW) {
+            overflow();
+            return false;
+        }
+
+        if (subscription != null) {
+            subscription.drain();
+        }
+
+        if (signal) {
+            m_waiter.signal();
+        }
+
+        return false;
+    }
+
+    /**
+     *  Publish the events that were added to the ring since the last
+     *  call, and wake up consumers.
      */
-    void addEvent(ChannelEvent event) {
-        boolean hasWaitingThread;
+    void publishEvents() {
+        EventSubscription subscription;
 
-        m_eventQueue.add(event);
+        m_publishPending = false;
+        m_eventQueue.publish();
 
         synchronized (this) {
-            hasWaitingThread = m_waitLock.hasQueuedThreads();
+            subscription = m_subscription;
+
+            // Destroyed while the batch was received
+            if (m_connection == null) {
+                m_eventQueue.clear();
+            }
         }
 
-        if (hasWaitingThread) {
-            m_waitLock.release();
+        if (subscription != null) {
+            subscription.drain();
         }
+
+        m_waiter.signal();
     }
 
     /**
@@ -476,6 +949,27 @@ public class Channel {
         return event;
     }
 
+    /**
+     *  Checks if there are events in the event queue, without taking the
+     *  pending error or end signal into account.
+     *
+     *  @return True if the event queue is not empty.
+     */
+    boolean hasQueuedEvents() {
+        return m_eventQueue.isEmpty() == false;
+    }
+
+    /**
+     *  Remove a subscription, once it has been cancelled or completed.
+     *
+     *  @param subscription The subscription to remove.
+     */
+    synchronized void unsubscribe(EventSubscription subscription) {
+        if (m_subscription == subscription) {
+            m_subscription = null;
+        }
+    }
+
     /**
      *  Get the underlying connection to this channel instance
      *
@@ -492,25 +986,117 @@ public class Channel {
      *  @param ch The channel pointer.
      *  @param ctype The ContentType
      *  @param payload Optional payload
+     *  @return A ChannelResumed event to add to the channel, if the
+     *          channel was opened again after a reconnect.
+     */
+    ChannelEvent openSuccess(int channelPtr,
+                             int ctype,
+                             ByteBuffer data) {
+        CompletableFuture<ChannelEvent> future;
+        ChannelEvent openEvent;
+        Connection connection;
+        OpenRequest request;
+
+        synchronized (this) {
+            m_channelPtr = channelPtr;
+            m_connected = true;
+
+            if (m_resuming) {
+                m_resuming = false;
+                return new ChannelResumed(this, ctype, data);
+            }
+
+            openEvent = new ChannelData(this, ctype, 0, data);
+            future = m_connectFuture;
+            m_connectFuture = null;
+            connection = m_connection;
+            request = m_openRequest;
+
+            // Under the lock, so that a concurrent destroy unregisters
+            // the channel after it is registered
+            if (connection != null && request != null) {
+                m_metrics.register(connection.getEndpoint(),
+                                   m_path,
+                                   System.nanoTime() -
+                                   request.getCreatedTime());
+            }
+        }
+
+        if (future != null) {
+            future.complete(openEvent);
+        }
+
+        return null;
+    }
+
+    /**
+     *  Internal callback for a lost connection that is reconnecting.
+     *  Used by the Connection class.
+     *
+     *  @param error The cause of the lost connection.
+     *  @return The event to add to the channel, or null if the channel
+     *          is not open or already resuming.
+     */
+    synchronized ChannelEvent suspend(ChannelError error) {
+        if (m_connection == null || m_connected == false || m_resuming) {
+            return null;
+        }
+
+        m_resuming = true;
+
+        return new ChannelReconnecting(this, error);
+    }
+
+    /**
+     *  Checks if the channel waits to be opened again after a reconnect.
+     *
+     *  @return True if the channel is resuming.
+     */
+    synchronized boolean isResuming() {
+        return m_resuming;
+    }
+
+    /**
+     *  Returns the request that the channel was opened with.
+     *
+     *  @return The request, or null if the channel is not open.
      */
-    synchronized void openSuccess(int channelPtr,
-                                  int ctype,
-                                  ByteBuffer data) {
-        m_channelPtr = channelPtr;
-        m_connected = true;
-        m_openEvent = new ChannelData(this, ctype, 0, data);
-        m_waitLock.release();
+    synchronized OpenRequest getOpenRequest() {
+        return m_openRequest;
     }
 
+    /**
+     *  Internal callback for resolve success. Sends the open request
+     *  for the resolved channel pointer.
+     *  Used by the Connection class.
+     */
     void resolveSuccess() {
-        m_waitLock.release();
+        Connection connection;
+        OpenRequest request;
+
+        synchronized (this) {
+            connection = m_connection;
+            request = m_openRequest;
+        }
+
+        if (connection == null || request == null) {
+            return;
+        }
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Channel",
+                                   request.getChannelPtr(),
+                                   "Path resolved, sending open request");
+        }
+
+        connection.writeBytes(request.getFrame());
     }
 
-    synchronized void destroy(ChannelError error) {
+    void destroy(ChannelError error) {
         destroy(error, null);
     }
 
-    synchronized void destroy(ChannelSignal event) {
+    void destroy(ChannelSignal event) {
         destroy(null, event);
     }
 
@@ -519,38 +1105,257 @@ public class Channel {
      *
      *  @param error The cause of the destroy.
      */
-    synchronized void destroy(ChannelError error,
-                              ChannelSignal event) {
-        Connection connection = m_connection;
-        boolean connected = m_connected;
-        int channelPtr = m_channelPtr;
-        boolean closing = m_closing;
-        Frame frame;
+    void destroy(ChannelError error,
+                 ChannelSignal event) {
+        CompletableFuture<ChannelEvent> future;
+        ListenerDispatcher dispatcher = null;
+        EventSubscription subscription = null;
+        Connection connection;
+        boolean start = false;
+        boolean resume;
+
+        synchronized (this) {
+            connection = m_connection;
+            boolean connected = m_connected;
+            int channelPtr = m_channelPtr;
+            boolean closing = m_closing;
+            Frame frame;
+
+            m_channelPtr = 0;
+            m_connected = false;
+            m_resuming = false;
+            m_connection = null;
+            m_openRequest = null;
+
+            m_metrics.unregister();
+
+            // The server acknowledged the close that followed an overflow
+            if (m_failure != null) {
+                error = m_failure;
+                event = null;
+                m_failure = null;
+            }
+
+            future = m_connectFuture;
+            m_connectFuture = null;
+
+            if (connection != null) {
+
+                // Tell server that we received the end signal
+                if (event != null && closing == false) {
+                    frame = Frame.create(channelPtr,
+                                         ContentType.UTF8,
+                                         Frame.SIGNAL,
+                                         Frame.SIG_END);
+                    connection.writeBytes(frame);
+                }
+
+                connection.deallocChannel(this, connected ? channelPtr : 0);
+            }
+
+            resume = m_eventQueue.clear();
+
+            // A pending connect receives the error through its future,
+            // and an installed listener gets the error or end signal
+            // instead of nextEvent().
+            if (future == null) {
+                dispatcher = m_dispatcher;
+
+                if (dispatcher != null && error != null) {
+                    start = dispatcher.offer(error);
+                } else if (dispatcher != null && event != null) {
+                    start = dispatcher.offer(event);
+                } else {
+                    m_error = error;
+                    m_endEvent = event;
+                    subscription = m_subscription;
+                }
+            }
+        }
+
+        m_waiter.signal();
+
+        if (resume && connection != null) {
+            connection.resumeReading();
+        }
+
+        if (start) {
+            dispatcher.schedule();
+        }
+
+        if (subscription != null) {
+            subscription.drain();
+        }
+
+        if (future != null) {
+            if (error == null) {
+                error = new ChannelError("Channel was closed before " +
+                                         "it was opened");
+            }
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     *  Pop the next ChannelEvent, waiting using the wait strategy of the
+     *  channel.
+     *
+     *  @param timeout The max time to wait in nanoseconds, or a negative
+     *                 value to wait forever.
+     *  @return The event, or null if the timeout passed.
+     */
+    private ChannelEvent nextEvent(long timeout)
+        throws ChannelError, InterruptedException {
+        long deadline = System.nanoTime() + timeout;
+        long sequence;
+        ChannelEvent event;
+        ChannelError error;
+
+        for (;;) {
+            sequence = m_waiter.sequence();
+
+            // Checked without the monitor first, which is only
+            // contended by the thread that receives data
+            if (m_error != null && (error = resetError()) != null) {
+                throw error;
+            }
+
+            if (m_endEvent != null && (event = resetEndEvent()) != null) {
+                return event;
+            }
+
+            if ((event = pollEvent()) != null) {
+                return event;
+            }
+
+            if (timeout >= 0) {
+                timeout = Math.max(deadline - System.nanoTime(), 0);
+            }
+
+            if (m_waiter.await(sequence, timeout) == false) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     *  Remove the next event from the event queue, and resume reading
+     *  from the connection if it was paused for this channel and the
+     *  queue has drained.
+     *
+     *  @return The event, or null if the queue was empty.
+     */
+    ChannelEvent pollEvent() {
+        ChannelEvent event = m_eventQueue.poll();
+        Connection connection;
+
+        if (event != null && m_eventQueue.isPaused()) {
+            connection = getUnderlyingConnection();
+
+            if (m_eventQueue.resume() && connection != null) {
+                connection.resumeReading();
+            }
+        }
+
+        return event;
+    }
 
-        m_channelPtr = 0;
-        m_connected = false;
-        m_connection = null;
+    /**
+     *  Subscribe to the events of the channel. See asPublisher.
+     *
+     *  @param subscriber The subscriber.
+     */
+    private void subscribe(Flow.Subscriber<? super ChannelEvent> subscriber) {
+        EventSubscription subscription;
+
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber cannot be null");
+        }
 
-        if (connection != null) {
+        subscription = new EventSubscription(this, subscriber);
 
-            // Tell server that we received the end signal
-            if (event != null && closing == false) {
-                frame = Frame.create(channelPtr,
-                                     ContentType.UTF8,
-                                     Frame.SIGNAL,
-                                     Frame.SIG_END);
-                connection.writeBytes(frame);
+        synchronized (this) {
+            if (m_subscription != null || m_dispatcher != null) {
+                subscription = null;
+            } else {
+                m_subscription = subscription;
             }
+        }
+
+        if (subscription == null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Channel " +
+                                                         "already has " +
+                                                         "a subscriber " +
+                                                         "or listener"));
+            return;
+        }
+
+        subscription.start();
+    }
+
+    /**
+     *  Closes the channel because the event queue overflowed. The error
+     *  is raised once the server has acknowledged the close.
+     */
+    private void overflow() {
+        Connection connection;
+        int channelPtr;
+        boolean resume;
+
+        synchronized (this) {
+            connection = m_connection;
+            channelPtr = m_channelPtr;
+
+            if (connection == null || m_connected == false || m_closing) {
+                return;
+            }
+
+            m_closing = true;
+            m_failure = new ChannelError("Event queue overflow");
+            resume = m_eventQueue.clear();
+        }
+
+        if (resume) {
+            connection.resumeReading();
+        }
 
-            connection.deallocChannel(connected ? channelPtr : 0);
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Channel",
+                                   channelPtr,
+                                   "Event queue overflow, closing");
         }
 
-        m_error = error;
-        m_endEvent = event;
+        connection.writeBytes(Frame.create(channelPtr,
+                                           ContentType.UTF8,
+                                           Frame.SIGNAL,
+                                           Frame.SIG_END));
+    }
 
-        m_eventQueue.clear();
+    /**
+     *  Copy the remaining bytes of a payload that is written after the
+     *  caller has got its buffer back.
+     *
+     *  @param data The payload, or null.
+     *  @return A copy of the payload, or null.
+     */
+    private static ByteBuffer copyOf(ByteBuffer data) {
+        ByteBuffer copy;
 
-        m_waitLock.release();
+        if (data == null) {
+            return null;
+        }
+
+        copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+
+        return copy;
     }
 
     /**
@@ -565,7 +1370,7 @@ public class Channel {
         Connection connection;
         Frame frame;
 
-        if (data == null || data.capacity() == 0) {
+        if (data == null || data.remaining() == 0) {
             throw new ChannelError("Payload data cannot be zero-length");
         }
 
@@ -578,6 +1383,11 @@ public class Channel {
             throw new ChannelError("Not connected");
         }
 
+        // Not open on the new connection until it is resumed
+        if (isResuming()) {
+            return false;
+        }
+
         if (isWritable() == false) {
             throw new ChannelError("You do not have permission to send data");
         }
@@ -588,7 +1398,12 @@ public class Channel {
                              priority,
                              data);
 
-        return connection.writeBytes(frame);
+        if (connection.writeBytes(frame) == false) {
+            return false;
+        }
+
+        m_metrics.frameOut(data.remaining());
+        return true;
     }
 
     /**
@@ -602,7 +1417,7 @@ public class Channel {
         Connection connection;
         Frame frame;
 
-        if (data == null || data.capacity() == 0) {
+        if (data == null || data.remaining() == 0) {
             throw new ChannelError("Payload data cannot be zero-length");
         }
 
@@ -611,6 +1426,11 @@ public class Channel {
             throw new ChannelError("Not connected");
         }
 
+        // Not open on the new connection until it is resumed
+        if (isResuming()) {
+            return false;
+        }
+
         if (isEmitable() == false) {
             throw new ChannelError("You do not have permission to send signals");
         }
@@ -621,7 +1441,12 @@ public class Channel {
                              Frame.SIG_EMIT,
                              data);
 
-        return connection.writeBytes(frame);
+        if (connection.writeBytes(frame) == false) {
+            return false;
+        }
+
+        m_metrics.frameOut(data.remaining());
+        return true;
     }
 
     /**
@@ -632,6 +1457,7 @@ public class Channel {
         Connection connection;
         Frame frame;
         ChannelError error;
+        long sequence;
 
         if (isConnected() == false ||
             (connection = getUnderlyingConnection()) == null) {
@@ -652,20 +1478,29 @@ public class Channel {
                              Frame.SIG_END,
                              data);
 
-        try {
-            connection.writeBytes(frame);
-        } catch (Exception e) {
-            m_connected = false;
-            m_closing = false;
+        // The connection is lost or reconnecting, so there is no one
+        // to acknowledge the close. A resuming channel is not open on the
+        // new connection, even once it is handshaked.
+        if (isResuming() || connection.writeBytes(frame) == false) {
+            destroy(null, null);
         }
 
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Channel",
                                    getChannelPtr(),
-                                   "Acquire waitLock");
+                                   "Waiting for close acknowledgement");
+        }
+
+        for (;;) {
+            sequence = m_waiter.sequence();
+
+            if (getUnderlyingConnection() == null) {
+                break;
+            }
+
+            m_waiter.await(sequence, -1);
         }
 
-        m_waitLock.acquire();
         m_closing = false;
 
         if ((error = resetError()) != null) {
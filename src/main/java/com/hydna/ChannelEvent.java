@@ -9,7 +9,8 @@ public class ChannelEvent {
 
     private Channel m_target;
 
-    private ByteBuffer m_data;
+    // Replaced by a compacted copy on the first call to getData()
+    private volatile ByteBuffer m_data;
     private int m_ctype;
 	
     public ChannelEvent(Channel target, int ctype, ByteBuffer data) {
@@ -49,9 +50,52 @@ public class ChannelEvent {
     /**
      *  Returns the data associated with this ChannelData instance.
      *
+     *  The buffer is backed by an array that starts with the content, so
+     *  array() can be read from index zero. Received payloads are sliced
+     *  from larger chunks, and are copied into a buffer of their own on
+     *  the first call, which also lets the chunk be reclaimed. See
+     *  getDataWithoutCopy.
+     *
      *  @return The content.
      */
     public ByteBuffer getData() {
+        ByteBuffer data = m_data;
+        ByteBuffer copy;
+
+        if (data == null ||
+            (data.hasArray() &&
+             data.arrayOffset() == 0 &&
+             data.position() == 0 &&
+             data.limit() == data.array().length)) {
+            return data;
+        }
+
+        copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+
+        m_data = copy;
+
+        return copy;
+    }
+
+    /**
+     *  Returns the data associated with this ChannelData instance, without
+     *  copying it.
+     *
+     *  The content is between the position and the limit of the buffer.
+     *  The buffer may be a slice of a larger, possibly direct, buffer, so
+     *  use arrayOffset() when accessing the backing array. Data that was
+     *  broadcast to all channels of a connection is shared between the
+     *  channels, and the buffer is read-only.
+     *
+     *  A slice keeps the whole chunk it was sliced from alive, see
+     *  HydnaConfig.setReceiveChunkSize, so do not hold on to it after
+     *  the event has been handled.
+     *
+     *  @return The content.
+     */
+    public ByteBuffer getDataWithoutCopy() {
         return m_data;
     }
 
@@ -62,6 +106,7 @@ public class ChannelEvent {
      *  @return The content or null if not of type UTF-8.
      */
     public String getString() {
+        ByteBuffer data = m_data;
         Charset charset;
         CharsetDecoder decoder;
         String content;
@@ -71,16 +116,16 @@ public class ChannelEvent {
             return null;
         }
 
-        pos = m_data.position();
+        pos = data.position();
         charset = Charset.forName("UTF-8");
         decoder = charset.newDecoder();
         content = null;
 
         try {
-            content = decoder.decode(m_data).toString();
+            content = decoder.decode(data).toString();
         } catch (CharacterCodingException ex) {
         } finally {
-            m_data.position(pos);
+            data.position(pos);
         }
 
         return content;
@@ -0,0 +1,61 @@
+package com.hydna;
+
+/**
+ *  A listener that is called for every event of a Channel, as an
+ *  alternative to polling the channel with nextEvent().
+ *
+ *  The methods are called one at a time, in the order the events were
+ *  received. They are called either on the thread that receives data
+ *  from the connection, in which case they must not block, or on the
+ *  Executor that was given to Channel.setListener.
+ */
+public interface ChannelListener {
+
+    /**
+     *  Called when data is received on the channel.
+     *
+     *  @param data The data event.
+     */
+    void onData(ChannelData data);
+
+    /**
+     *  Called when a signal is received on the channel.
+     *
+     *  @param signal The signal event.
+     */
+    void onSignal(ChannelSignal signal);
+
+    /**
+     *  Called when the channel is closed with an end signal. No more
+     *  events are delivered after this call.
+     *
+     *  @param signal The end signal.
+     */
+    void onEnd(ChannelEndSignal signal);
+
+    /**
+     *  Called when the channel is closed because of an error. No more
+     *  events are delivered after this call.
+     *
+     *  @param error The cause of the close.
+     */
+    void onError(ChannelError error);
+
+    /**
+     *  Called when the connection of the channel was lost, and the
+     *  library is reconnecting. Does nothing by default.
+     *
+     *  @param event The reconnecting event.
+     */
+    default void onReconnecting(ChannelReconnecting event) {
+    }
+
+    /**
+     *  Called when the channel has been opened again after a reconnect.
+     *  Does nothing by default.
+     *
+     *  @param event The resumed event.
+     */
+    default void onResumed(ChannelResumed event) {
+    }
+}
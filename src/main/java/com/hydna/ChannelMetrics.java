@@ -0,0 +1,114 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ *  This class is used internally by the Channel class.
+ *  The counters of a channel. Received events are counted on the event
+ *  loop thread, and sent frames on the threads that send.
+ */
+class ChannelMetrics implements ChannelMetricsMXBean {
+
+    private final EventQueue m_eventQueue;
+
+    private final LongAdder m_eventsIn = new LongAdder();
+    private final LongAdder m_bytesIn = new LongAdder();
+    private final LongAdder m_framesOut = new LongAdder();
+    private final LongAdder m_bytesOut = new LongAdder();
+
+    private volatile String m_endpoint;
+    private volatile String m_path;
+    private volatile long m_openLatency = 0;
+
+    private volatile ObjectName m_name;
+
+    ChannelMetrics(EventQueue eventQueue) {
+        m_eventQueue = eventQueue;
+    }
+
+    /**
+     *  Register the channel once it is open, if channel metrics are
+     *  enabled, see HydnaConfig.setChannelJmxEnabled. Channels that are
+     *  opened again after a reconnect keep their registration.
+     *
+     *  @param endpoint The endpoint of the connection.
+     *  @param path The path of the channel.
+     *  @param nanos The time it took to open the channel.
+     */
+    void register(String endpoint, String path, long nanos) {
+        m_endpoint = endpoint;
+        m_path = path;
+        m_openLatency = nanos;
+
+        if (HydnaConfig.getChannelJmxEnabled()) {
+            m_name = MetricsRegistry.register(this, "Channel", endpoint, path);
+        }
+    }
+
+    void unregister() {
+        ObjectName name = m_name;
+
+        if (name != null) {
+            m_name = null;
+            MetricsRegistry.unregister(name);
+        }
+    }
+
+    void eventIn(ChannelEvent event) {
+        ByteBuffer data = event.getDataWithoutCopy();
+
+        m_eventsIn.increment();
+
+        if (data != null) {
+            m_bytesIn.add(data.remaining());
+        }
+    }
+
+    void frameOut(int size) {
+        m_framesOut.increment();
+        m_bytesOut.add(size);
+    }
+
+    public String getEndpoint() {
+        return m_endpoint;
+    }
+
+    public String getPath() {
+        return m_path;
+    }
+
+    public long getEventsIn() {
+        return m_eventsIn.sum();
+    }
+
+    public long getBytesIn() {
+        return m_bytesIn.sum();
+    }
+
+    public long getFramesOut() {
+        return m_framesOut.sum();
+    }
+
+    public long getBytesOut() {
+        return m_bytesOut.sum();
+    }
+
+    public int getQueueDepth() {
+        return m_eventQueue.size();
+    }
+
+    public int getQueueHighWaterMark() {
+        return m_eventQueue.getHighWaterMark();
+    }
+
+    public long getDroppedEvents() {
+        return m_eventQueue.getDropped();
+    }
+
+    public long getOpenLatency() {
+        return m_openLatency / 1000;
+    }
+}
@@ -0,0 +1,84 @@
+package com.hydna;
+
+/**
+ *  The management interface of a channel, registered with the platform
+ *  MBean server under the name
+ *  com.hydna:type=Channel,endpoint="host:port",path="/path",id=n
+ *  while the channel is open.
+ */
+public interface ChannelMetricsMXBean {
+
+    /**
+     *  Returns the host and port of the connection of the channel.
+     *
+     *  @return The endpoint, as host:port.
+     */
+    String getEndpoint();
+
+    /**
+     *  Returns the path of the channel.
+     *
+     *  @return The path.
+     */
+    String getPath();
+
+    /**
+     *  Returns the number of events received, including events that were
+     *  dropped because the event queue was full.
+     *
+     *  @return The number of events.
+     */
+    long getEventsIn();
+
+    /**
+     *  Returns the number of payload bytes received.
+     *
+     *  @return The number of bytes.
+     */
+    long getBytesIn();
+
+    /**
+     *  Returns the number of data messages and signals sent.
+     *
+     *  @return The number of frames.
+     */
+    long getFramesOut();
+
+    /**
+     *  Returns the number of payload bytes sent.
+     *
+     *  @return The number of bytes.
+     */
+    long getBytesOut();
+
+    /**
+     *  Returns the number of events in the event queue.
+     *
+     *  @return The queue depth.
+     */
+    int getQueueDepth();
+
+    /**
+     *  Returns the highest number of events that have been in the event
+     *  queue at once.
+     *
+     *  @return The high-water mark.
+     */
+    int getQueueHighWaterMark();
+
+    /**
+     *  Returns the number of events that were dropped because the event
+     *  queue was full.
+     *
+     *  @return The number of dropped events.
+     */
+    long getDroppedEvents();
+
+    /**
+     *  Returns the time it took to open the channel, from the first
+     *  request to the reply of the server.
+     *
+     *  @return The latency in microseconds.
+     */
+    long getOpenLatency();
+}
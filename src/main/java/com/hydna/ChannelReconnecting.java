@@ -0,0 +1,33 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  Delivered to an open channel when its connection was lost and the
+ *  library is reconnecting. The content is the reason, as UTF-8. The
+ *  channel cannot send until it has been resumed.
+ *
+ *  See HydnaConfig.setReconnect.
+ */
+public class ChannelReconnecting extends ChannelEvent {
+
+    private ChannelError m_cause;
+
+    public ChannelReconnecting(Channel target, ChannelError cause) {
+        super(target,
+              ContentType.UTF8,
+              ByteBuffer.wrap(String.valueOf(cause.getMessage())
+                                    .getBytes(StandardCharsets.UTF_8)));
+        m_cause = cause;
+    }
+
+    /**
+     *  Returns the error that caused the connection to be lost.
+     *
+     *  @return The cause.
+     */
+    public ChannelError getCause() {
+        return m_cause;
+    }
+}
@@ -0,0 +1,17 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  Delivered to a channel once it has been opened again after a
+ *  reconnect. The content is the welcome message of the new open, if
+ *  any.
+ *
+ *  See HydnaConfig.setReconnect.
+ */
+public class ChannelResumed extends ChannelEvent {
+
+    public ChannelResumed(Channel target, int ctype, ByteBuffer data) {
+        super(target, ctype, data);
+    }
+}
@@ -0,0 +1,76 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  This class is used internally by the Connection class.
+ *  Hands out payload buffers as slices of large chunks, so that the
+ *  receive path does not allocate a new buffer for every frame.
+ *
+ *  A chunk is never handed out twice. Once it is full it is dropped, and
+ *  reclaimed by the garbage collector together with the last event that
+ *  refers to it. An allocator is only used from a single event loop
+ *  thread.
+ */
+class ChunkAllocator {
+
+    private int m_chunkSize;
+    private boolean m_direct;
+
+    private ByteBuffer m_chunk;
+
+    ChunkAllocator(int chunkSize, boolean direct) {
+        m_chunkSize = chunkSize;
+        m_direct = direct;
+    }
+
+    /**
+     *  Allocate a buffer. Large buffers get a buffer of their own, so
+     *  that they do not waste the rest of a chunk.
+     *
+     *  @param size The size of the buffer.
+     *  @return A buffer with the position set to zero and the limit set
+     *          to size.
+     */
+    ByteBuffer allocate(int size) {
+        ByteBuffer buffer;
+
+        if (size > (m_chunkSize >> 3)) {
+            return newBuffer(size);
+        }
+
+        if (m_chunk == null || m_chunk.remaining() < size) {
+            m_chunk = newBuffer(m_chunkSize);
+        }
+
+        m_chunk.limit(m_chunk.position() + size);
+        buffer = m_chunk.slice();
+        m_chunk.position(m_chunk.limit());
+        m_chunk.limit(m_chunk.capacity());
+
+        return buffer;
+    }
+
+    /**
+     *  Allocate a buffer and copy the remaining bytes of data into it.
+     *  The position of data is left unchanged.
+     *
+     *  @param data The data to copy.
+     *  @return A buffer, ready to be read, holding a copy of data.
+     */
+    ByteBuffer copy(ByteBuffer data) {
+        ByteBuffer buffer = allocate(data.remaining());
+
+        buffer.put(data.duplicate());
+        buffer.flip();
+
+        return buffer;
+    }
+
+    private ByteBuffer newBuffer(int size) {
+        if (m_direct) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        return ByteBuffer.allocate(size);
+    }
+}
@@ -1,26 +1,30 @@
 package com.hydna;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -28,93 +32,343 @@ import java.util.concurrent.locks.ReentrantLock;
  *  This class is used internally by the Channel class.
  *  A user of the library should not create an instance of this class.
  */
-public class Connection implements Runnable {
+public class Connection {
 
-    private static Map<String, Connection> m_availableConnections;
+    // Large enough to always hold one complete frame
+    private static final int RECEIVE_BUFFER_SIZE = 0x20000;
+
+    // Max number of frames in one gathering write
+    private static final int MAX_WRITE_FRAMES = 256;
+
+    // Max number of gathering writes per flush, before other
+    // connections on the event loop get their turn
+    private static final int MAX_FLUSH_ROUNDS = 16;
+
+    // The connections of each endpoint, by slot. A slot is null until a
+    // channel is placed on it.
+    private static Map<Endpoint, Connection[]> m_availableConnections;
+
+    // The channels of each endpoint by path, shared by the connections
+    // to the endpoint, so that a path is only opened once per endpoint
+    private static Map<Endpoint, Map<String, Channel>> m_pathIndexes =
+        new HashMap<Endpoint, Map<String, Channel>>();
+
+    // Connections without channels that are kept open for reuse, in the
+    // order they became idle. Guarded by the class lock, like the idle
+    // task of each connection.
+    private static Set<Connection> m_idleConnections =
+        new LinkedHashSet<Connection>();
 
     private boolean m_connecting = false;
-    private boolean m_connected = false;
+    private volatile boolean m_connected = false;
     private boolean m_handshaked = false;
     private boolean m_destroying = false;
-    private boolean m_listening = false;
+    private boolean m_reconnecting = false;
 
-    private String m_id;
+    private Endpoint m_endpoint;
+    private int m_slot;
     private String m_host;
-    private short m_port;
+    private int m_port;
 
     private SocketChannel m_socketChannel;
     private Socket m_socket;
-    private DataOutputStream m_outStream;
-    private BufferedReader m_inStreamReader;
+
+    private EventLoop m_eventLoop;
+    private SelectionKey m_selectionKey;
+
+    private ByteBuffer m_receiveBuffer;
+    private ChunkAllocator m_allocator;
+
+    private OutboundQueue m_outbound;
+    private AtomicBoolean m_flushScheduled;
+    private AtomicBoolean m_delayedFlushScheduled;
+    private Runnable m_flushTask;
+    private Runnable m_delayedFlushTask;
+    private long m_flushDelay;
+    private int m_flushBatchSize;
+
+    // Guards the socket, its interest set and the state of the flush
+    // in progress
+    private final Object m_writeLock = new Object();
+    private ByteBuffer[] m_writeHeaders;
+    private ByteBuffer[] m_writeVector;
+    private int m_writeOffset = 0;
+    private int m_writeCount = 0;
+    private boolean m_writeInterest = false;
+    private int m_readPauses = 0;
 
     private Map<Integer, Channel> m_openChannels;
 
-    private OpenRequest m_pendingOpenRequest;
+    // Channels that are open or opening, by path, on any connection to
+    // the endpoint
+    private Map<String, Channel> m_channelsByPath;
+
+    // Channels with events to publish after the current read
+    private ArrayList<Channel> m_publishChannels;
+
+    private Map<String, OpenRequest> m_pendingResolves;
+    private Map<Integer, OpenRequest> m_pendingOpens;
 
     private int m_channelRefCount = 0;
 
-    private Thread m_listeningThread;
+    // Closes the connection when the linger time runs out
+    private ScheduledTask m_idleTask;
+
+    private final Lock m_connectLock = new ReentrantLock();
+
+    private ResolveCache m_resolveCache;
+
+    // Channels to open again once reconnected
+    private Set<Channel> m_resumeChannels;
+
+    private long m_keepaliveInterval;
+    private long m_readTimeout;
+
+    // The timer of the current socket, and the state it checks, which
+    // is only accessed on the event loop thread
+    private volatile int m_timerGeneration = 0;
+    private volatile ScheduledTask m_timerTask;
+    private long m_lastRead;
+
+    // The time of the last write, kept while keepalives are enabled
+    private volatile long m_lastWrite;
+
+    // The time the outstanding round trip probe was sent, or 0
+    private long m_probeSent = 0;
+
+    // Smoothed round trip time in nanoseconds, or -1 if unknown
+    private volatile long m_roundTripTime = -1;
+
+    private ConnectionMetrics m_metrics;
+
+    private boolean m_reconnect;
+    private long m_reconnectMinDelay;
+    private long m_reconnectMaxDelay;
+    private int m_reconnectAttempts;
 
 
     /**
-     *  Return an available connection or create a new one.
+     *  Return an available connection or create a new one. When more
+     *  than one connection per endpoint is used, the connection is
+     *  picked by the configured ConnectionPlacement.
      *
      *  @param host The host associated with the connection.
      *  @param port The port associated with the connection.
+     *  @param path The path of the channel that will use the connection.
      *  @return The connection.
      */
-    synchronized static Connection getConnection(String host, short port) {
+    synchronized static Connection getConnection(String host,
+                                                 int port,
+                                                 String path) {
+        Endpoint endpoint;
+        Connection[] slots;
         Connection connection;
-        String id;
+        int slot;
 
-        id = host + Short.toString(port);
+        endpoint = new Endpoint(host, port);
 
         if (m_availableConnections == null) {
-            m_availableConnections = new HashMap<String, Connection>();
+            m_availableConnections = new HashMap<Endpoint, Connection[]>();
+        }
+
+        slots = m_availableConnections.get(endpoint);
+
+        if (slots == null) {
+            slots = new Connection[HydnaConfig.getConnectionsPerEndpoint()];
+            m_availableConnections.put(endpoint, slots);
+            m_pathIndexes.put(endpoint,
+                              new ConcurrentHashMap<String, Channel>());
         }
 
-        if (m_availableConnections.containsKey(id)) {
-            connection = m_availableConnections.get(id);
+        slot = selectSlot(slots, path);
+        connection = slots[slot];
+
+        if (connection == null) {
+            connection = new Connection(endpoint,
+                                        slot,
+                                        m_pathIndexes.get(endpoint));
+            slots[slot] = connection;
         } else {
-            connection = new Connection(id, host, port);
-            m_availableConnections.put(id, connection);
+            connection.leaveIdlePool();
         }
 
         return connection;
     }
 
+    /**
+     *  Pick the slot of the connection for a new channel.
+     *
+     *  @param slots The connections of the endpoint.
+     *  @param path The path of the channel.
+     *  @return The slot.
+     */
+    private static int selectSlot(Connection[] slots, String path) {
+        int best = 0;
+        int bestLoad = Integer.MAX_VALUE;
+        int load;
+
+        if (slots.length == 1) {
+            return 0;
+        }
+
+        if (HydnaConfig.getConnectionPlacement() ==
+            ConnectionPlacement.PATH_HASH) {
+            return (path.hashCode() & 0x7FFFFFFF) % slots.length;
+        }
+
+        for (int i = 0; i < slots.length; i++) {
+            load = slots[i] == null ? 0 : slots[i].getChannelCount();
+
+            if (load < bestLoad) {
+                best = i;
+                bestLoad = load;
+            }
+        }
+
+        return best;
+    }
 
     synchronized static void disposeConnection(Connection connection) {
-        String id;
-        synchronized (connection) {
-            id = connection.m_id;
-            if (id != null) {
-                connection.m_id = null;
-                if (m_availableConnections.containsKey(id)) {
-                    m_availableConnections.remove(id);
-                }
+        Connection[] slots;
+
+        connection.leaveIdlePool();
+
+        slots = m_availableConnections.get(connection.m_endpoint);
+
+        if (slots == null || slots[connection.m_slot] != connection) {
+            return;
+        }
+
+        slots[connection.m_slot] = null;
+
+        for (Connection other : slots) {
+            if (other != null) {
+                return;
             }
         }
+
+        m_availableConnections.remove(connection.m_endpoint);
+        m_pathIndexes.remove(connection.m_endpoint);
+    }
+
+    /**
+     *  Initializes a new Connection instance, with a path index of its
+     *  own.
+     *
+     *  @param endpoint The endpoint the connection should connect to.
+     *  @param slot The slot of the connection among the connections to
+     *              the endpoint.
+     */
+    Connection(Endpoint endpoint, int slot) {
+        this(endpoint, slot, new ConcurrentHashMap<String, Channel>());
     }
 
     /**
-     *  Initializes a new Channel instance.
+     *  Initializes a new Connection instance.
      *
-     *  @param host The host the connection should connect to.
-     *  @param port The port the connection should connect to.
+     *  @param endpoint The endpoint the connection should connect to.
+     *  @param slot The slot of the connection among the connections to
+     *              the endpoint.
+     *  @param channelsByPath The channels of the endpoint by path, shared
+     *                        with the other connections to the endpoint.
      */
-    public Connection(String id, String host, short port) {
-        m_id = id;
-        m_host = host;
-        m_port = port;
+    Connection(Endpoint endpoint,
+               int slot,
+               Map<String, Channel> channelsByPath) {
+        m_endpoint = endpoint;
+        m_slot = slot;
+        m_host = endpoint.getHost();
+        m_port = endpoint.getPort();
 
         m_openChannels = new ConcurrentHashMap<Integer, Channel>();
+        m_channelsByPath = channelsByPath;
+        m_resolveCache = ResolveCache.getDefault();
+        m_resumeChannels = ConcurrentHashMap.newKeySet();
+
+        m_keepaliveInterval = HydnaConfig.getKeepaliveInterval() * 1000000;
+        m_readTimeout = HydnaConfig.getReadTimeout() * 1000000;
+
+        m_reconnect = HydnaConfig.getReconnect();
+        m_reconnectMinDelay = HydnaConfig.getReconnectMinDelay();
+        m_reconnectMaxDelay = HydnaConfig.getReconnectMaxDelay();
+        m_reconnectAttempts = HydnaConfig.getReconnectAttempts();
+        m_publishChannels = new ArrayList<Channel>();
+
+        m_pendingResolves = new ConcurrentHashMap<String, OpenRequest>();
+        m_pendingOpens = new ConcurrentHashMap<Integer, OpenRequest>();
+
+        if (HydnaConfig.getDirectBuffers()) {
+            m_receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        } else {
+            m_receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        }
+        m_receiveBuffer.order(ByteOrder.BIG_ENDIAN);
+
+        m_outbound =
+            new OutboundQueue(HydnaConfig.getPriorityStarvationLimit());
+        m_flushScheduled = new AtomicBoolean(false);
+        m_delayedFlushScheduled = new AtomicBoolean(false);
+        m_flushDelay = HydnaConfig.getFlushDelay() * 1000;
+        m_flushBatchSize = HydnaConfig.getFlushBatchSize();
+
+        m_flushTask = new Runnable() {
+            public void run() {
+                m_flushScheduled.set(false);
+                flush();
+            }
+        };
+
+        m_delayedFlushTask = new Runnable() {
+            public void run() {
+                m_delayedFlushScheduled.set(false);
+                flush();
+            }
+        };
+
+        // The headers of a batch are encoded into slices of one buffer
+        ByteBuffer headers;
+        headers = ByteBuffer.allocate(MAX_WRITE_FRAMES *
+                                      Frame.ENCODED_HEADER_SIZE);
+
+        m_writeHeaders = new ByteBuffer[MAX_WRITE_FRAMES];
+        for (int i = 0; i < MAX_WRITE_FRAMES; i++) {
+            headers.limit((i + 1) * Frame.ENCODED_HEADER_SIZE);
+            headers.position(i * Frame.ENCODED_HEADER_SIZE);
+            m_writeHeaders[i] = headers.slice();
+        }
+
+        m_writeVector = new ByteBuffer[MAX_WRITE_FRAMES * 2];
+
+        m_metrics = new ConnectionMetrics(this, getEndpoint());
+        m_metrics.register();
     }
 
     synchronized boolean isDestroying() {
         return m_destroying;
     }
 
+    synchronized boolean isHandshaked() {
+        return m_handshaked;
+    }
+
+    boolean isConnected() {
+        return m_connected;
+    }
+
+    int getOpenChannelCount() {
+        return m_openChannels.size();
+    }
+
+    /**
+     *  Returns the number of channels that use the connection, including
+     *  channels that are opening.
+     *
+     *  @return The number of channels.
+     */
+    synchronized int getChannelCount() {
+        return m_channelRefCount;
+    }
+
     /**
      * Method to keep track of the number of channels that is associated 
      * with this connection instance.
@@ -125,6 +379,10 @@ public class Connection implements Runnable {
             throw new ChannelError("Unable to alloc, connection is closing");
         }
 
+        synchronized (Connection.class) {
+            leaveIdlePool();
+        }
+
         synchronized (this) {
             m_channelRefCount++;
         }
@@ -140,21 +398,32 @@ public class Connection implements Runnable {
     /**
      *  Decrease the reference count.
      *
-     *  @param channelPtr The channel to dealloc.
+     *  @param channel The channel to dealloc.
+     *  @param channelPtr The pointer of the channel, or 0 if it was
+     *                    never opened.
      */
-    void deallocChannel(int channelPtr) {
+    void deallocChannel(Channel channel, int channelPtr) {
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection",
                                     channelPtr,
                                     "Deallocating a channel");
         }
 
+        if (channelPtr != 0) {
+            m_metrics.channelClosed();
+        }
+
+        // The index is shared with the other connections to the
+        // endpoint, so the path is released even while destroying
+        m_channelsByPath.remove(channel.getPath(), channel);
+
         if (isDestroying()) {
             // Ignore if we are destroying.
             return;
         }
 
         m_openChannels.remove(channelPtr);
+        m_resumeChannels.remove(channel);
 
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection",
@@ -163,7 +432,9 @@ public class Connection implements Runnable {
                                          + m_openChannels.size());
         }
 
-        --m_channelRefCount;
+        synchronized (this) {
+            --m_channelRefCount;
+        }
 
         checkRefCount();
     }
@@ -186,6 +457,10 @@ public class Connection implements Runnable {
             }            
         }
 
+        if (linger()) {
+            return;
+        }
+
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection",
                                    0,
@@ -198,11 +473,133 @@ public class Connection implements Runnable {
     }
 
     /**
-     *  Request to open a channel.
+     *  Keep the connection open for the linger time, so that the next
+     *  channel to the endpoint can reuse it. If the idle pool is full,
+     *  the connection that has been idle the longest is closed.
+     *
+     *  @return False if the connection should be destroyed right away.
+     */
+    private boolean linger() {
+        long linger = HydnaConfig.getConnectionLinger() * 1000000;
+        int max = HydnaConfig.getMaxIdleConnections();
+        Iterator<Connection> oldest;
+        Connection evicted = null;
+
+        if (linger == 0 || max == 0) {
+            return false;
+        }
+
+        synchronized (Connection.class) {
+            synchronized (this) {
+                if (m_channelRefCount != 0) {
+                    // Reused since the last channel was closed
+                    return true;
+                }
+
+                if (m_handshaked == false ||
+                    m_destroying ||
+                    m_reconnecting) {
+                    return false;
+                }
+            }
+
+            if (m_idleConnections.add(this) == false) {
+                return true;
+            }
+
+            m_idleTask = m_eventLoop.schedule(new Runnable() {
+                public void run() {
+                    evict();
+                }
+            }, linger);
+
+            if (m_idleConnections.size() > max) {
+                oldest = m_idleConnections.iterator();
+                evicted = oldest.next();
+
+                if (evicted.takeFromPool() == false) {
+                    evicted = null;
+                }
+            }
+        }
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection",
+                                   0,
+                                   "No more refs, lingering for " +
+                                   linger / 1000000 + "ms");
+        }
+
+        if (evicted != null) {
+            evicted.destroy(null);
+        }
+
+        return true;
+    }
+
+    /**
+     *  Close the connection if it is still idle when the linger time
+     *  runs out.
+     */
+    private void evict() {
+        synchronized (Connection.class) {
+            if (m_idleConnections.contains(this) == false ||
+                takeFromPool() == false) {
+                return;
+            }
+        }
+
+        destroy(null);
+    }
+
+    /**
+     *  Take an idle connection out of the idle pool and out of its slot,
+     *  so that no new channel can pick it before it is destroyed. The
+     *  class lock must be held.
+     *
+     *  @return False if the connection has channels again, and should be
+     *          kept.
+     */
+    private boolean takeFromPool() {
+        leaveIdlePool();
+
+        synchronized (this) {
+            if (m_channelRefCount != 0) {
+                return false;
+            }
+        }
+
+        disposeConnection(this);
+
+        return true;
+    }
+
+    /**
+     *  Remove the connection from the idle pool, if it is in it. The
+     *  class lock must be held.
+     */
+    private void leaveIdlePool() {
+        if (m_idleConnections.remove(this)) {
+            m_idleTask.cancel();
+            m_idleTask = null;
+        }
+    }
+
+    /**
+     *  Request to open a channel. The request is added to the table of
+     *  pending resolves, keyed by path, so that several requests can be
+     *  in flight on the same connection at once. A path can only be
+     *  opened by one channel at a time.
+     *
+     *  If the channel pointer of the path is cached, the request is
+     *  added to the table of pending opens instead, and the path is not
+     *  resolved.
      *
      *  @param request The request to open the channel.
+     *  @return The frame to send, either a resolve or an open request.
      */
-    void requestOpen(OpenRequest request) throws ChannelError {
+    Frame requestOpen(OpenRequest request) throws ChannelError {
+        Channel channel;
         String path;
 
         if (HydnaDebug.HYDNADEBUG) {
@@ -211,43 +608,74 @@ public class Connection implements Runnable {
                                    "A channel is trying to send a new request");
         }
 
-        path = request.getChannel().getPath();
+        channel = request.getChannel();
+        path = channel.getPath();
 
-        if (getChannelByPath(path) != null) {
+        // Reserved until the channel is deallocated
+        if (m_channelsByPath.putIfAbsent(path, channel) != null) {
             throw new ChannelError("Channel already open");
         }
 
+        // The connect blocks on network I/O, so it is guarded by a lock
+        // rather than the monitor, which would pin a virtual thread.
+        m_connectLock.lock();
         try {
-            synchronized (this) {
-                if (!m_handshaked) {
-                    connectConnection(m_host, m_port);
-                }
+            if (!isHandshaked()) {
+                connectConnection(m_host, m_port);
             }
-        } catch (ChannelError e) {
-            throw e;
+        } finally {
+            m_connectLock.unlock();
         }
 
-        synchronized (this) {
-            m_pendingOpenRequest = request;
-        }
+        return registerOpen(request);
     }
 
-    private Channel getChannelByPath(String path) {
-        Iterator<Channel> it;
-        Channel channel;
+    /**
+     *  Add a request to the table of pending opens if the channel pointer
+     *  of its path is cached, or else to the table of pending resolves.
+     *
+     *  @param request The request to open the channel.
+     *  @return The frame to send, either a resolve or an open request.
+     */
+    private Frame registerOpen(OpenRequest request) throws ChannelError {
+        String path = request.getChannel().getPath();
+        int channelPtr = 0;
 
-        it = m_openChannels.values().iterator();
-        while (it.hasNext()) {
-            channel = it.next();
-            if (channel.getPath() == path) {
-                return channel;
-            }
+        request.setCached(false);
+        request.setSentTime(System.nanoTime());
+
+        if (m_resolveCache != null) {
+            channelPtr = m_resolveCache.get(getEndpoint(), path);
+        }
+
+        if (channelPtr != 0 &&
+            m_pendingOpens.putIfAbsent(channelPtr, request) == null) {
+            request.setChannelPtr(channelPtr);
+            request.setCached(true);
+            return request.getFrame();
+        }
+
+        if (m_pendingResolves.putIfAbsent(path, request) != null) {
+            throw new ChannelError("Channel already open");
         }
-        return null;
+
+        return request.getResolveFrame();
     }
-	
+
+    /**
+     *  Returns the host and port of the connection, as used by the
+     *  resolve cache and the metrics.
+     *
+     *  @return The endpoint.
+     */
+    String getEndpoint() {
+        return m_endpoint.toString();
+    }
+
     /**
-     *  Connect the connection.
+     *  Connect the connection. The connect and the handshake are done
+     *  in blocking mode, after which the socket is switched to
+     *  non-blocking mode and handed to an event loop.
      *
      *  @param host The host to connect to.
      *  @param port The port to connect to.
@@ -259,6 +687,8 @@ public class Connection implements Runnable {
             DebugHelper.debugPrint("Connection", 0, "Connecting, attempt ");
         }
         
+        m_receiveBuffer.clear();
+
         try {
             SocketAddress address = new InetSocketAddress(host, port);
             m_socketChannel = SocketChannel.open(address);
@@ -270,9 +700,6 @@ public class Connection implements Runnable {
                 System.err.println("WARNING: Could not set TCP_NODELAY");
             }
         	
-            m_outStream = new DataOutputStream(m_socket.getOutputStream());
-            m_inStreamReader = new BufferedReader(new InputStreamReader(m_socket.getInputStream()));
-        	
             if (HydnaDebug.HYDNADEBUG) {
                 DebugHelper.debugPrint("Connection", 0, "Connected, sending HTTP upgrade request");
             }
@@ -294,13 +721,19 @@ public class Connection implements Runnable {
      *  Send HTTP upgrade request.
      */
     private void connectHandler() throws ChannelError {
+        ByteBuffer request;
+
         try {
-            m_outStream.writeBytes("GET / HTTP/1.1\r\n" +
-                                   "Connection: upgrade\r\n" +
-                                   "Upgrade: winksock/1\r\n" +
-                                   "Host: " + m_host);
+            request = ByteBuffer.wrap(("GET / HTTP/1.1\r\n" +
+                                       "Connection: upgrade\r\n" +
+                                       "Upgrade: winksock/1\r\n" +
+                                       "Host: " + m_host +
+                                       "\r\n\r\n").getBytes("US-ASCII"));
+
+            while (request.hasRemaining()) {
+                m_socketChannel.write(request);
+            }
 
-            m_outStream.writeBytes("\r\n\r\n");
             handshakeHandler();
         } catch (IOException e) {
             m_connected = false;
@@ -316,70 +749,63 @@ public class Connection implements Runnable {
      */
     private void handshakeHandler() throws ChannelError {
         ChannelError error;
-        boolean fieldsLeft = true;
         boolean gotResponse = false;
+        String[] lines;
         
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection", 0, "Incoming upgrade response");
         }
+
+        try {
+            lines = readHandshake();
+        } catch (IOException e) {
+            error = new ChannelError("Server responded with bad handshake");
+            throw error;
+        }
                 
-        while (fieldsLeft) {
-            String line;
-        	
-            try {
-                line = m_inStreamReader.readLine();
-                if (line.length() == 0) {
-                    fieldsLeft = false;
-                }
-            } catch (IOException e) {
-                error = new ChannelError("Server responded with bad handshake");
-                throw error;
-            }
-        	
-            if (fieldsLeft) {
-                // First line i a response, all others are fields
-                if (!gotResponse) {
-                    int code = 0;
-                    int pos1, pos2;
+        for (String line : lines) {
+            // First line i a response, all others are fields
+            if (!gotResponse) {
+                int code = 0;
+                int pos1, pos2;
         			
-                    // Take the response code from "HTTP/1.1 101
-                    // Switching Protocols"
-                    pos1 = line.indexOf(" ");
-                    if (pos1 != -1) {
-                        pos2 = line.indexOf(" ", pos1 + 1);
+                // Take the response code from "HTTP/1.1 101
+                // Switching Protocols"
+                pos1 = line.indexOf(" ");
+                if (pos1 != -1) {
+                    pos2 = line.indexOf(" ", pos1 + 1);
         				
-                        if (pos2 != -1) {
-                            try {
-                                code = Integer.parseInt(line.substring(pos1 + 1, pos2));
-                            } catch (NumberFormatException e) {
-                                error = new ChannelError("Could not read " +
-                                                         "the status from " +
-                                                         "the response \"" +
-                                                         line + "\"");
-                                throw error;
-                            }
+                    if (pos2 != -1) {
+                        try {
+                            code = Integer.parseInt(line.substring(pos1 + 1, pos2));
+                        } catch (NumberFormatException e) {
+                            error = new ChannelError("Could not read " +
+                                                     "the status from " +
+                                                     "the response \"" +
+                                                     line + "\"");
+                            throw error;
                         }
                     }
+                }
 
-                    if (code != 101) {
-                        error = new ChannelError("Unexpected response " + 
-                                                 "code, " + code);
-                        throw error;
-                    }
+                if (code != 101) {
+                    error = new ChannelError("Unexpected response " + 
+                                             "code, " + code);
+                    throw error;
+                }
 
-                    gotResponse = true;
-                } else {
-                    line = line.toLowerCase();
-                    int pos;
-
-                    pos = line.indexOf("upgrade: ");
-                    if (pos != -1) {
-                        String header = line.substring(9);
-                        if (!header.equals("winksock/1")) {
-                            error = new ChannelError("Bad protocol version: " +
-                                                     header);
-                            throw error;
-                        }
+                gotResponse = true;
+            } else {
+                line = line.toLowerCase();
+                int pos;
+
+                pos = line.indexOf("upgrade: ");
+                if (pos != -1) {
+                    String header = line.substring(9);
+                    if (!header.equals("winksock/1")) {
+                        error = new ChannelError("Bad protocol version: " +
+                                                 header);
+                        throw error;
                     }
                 }
             }
@@ -390,103 +816,366 @@ public class Connection implements Runnable {
         }
 
         if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Connection", 0, "Creating a new thread for frame listening");
+            DebugHelper.debugPrint("Connection", 0, "Registering connection with event loop");
         }
 
         try {
-            m_listeningThread = new Thread(this);
-            m_listeningThread.start();
-        } catch (IllegalThreadStateException e) {
-            error = new ChannelError("Could not create listening thread");
+            m_socketChannel.configureBlocking(false);
+        } catch (IOException e) {
+            error = new ChannelError("Could not configure connection");
             throw error;
         }
 
-        m_handshaked = true;
-    }
-	
-    /**
-     * The method that is called in the new thread.
-     * Listens for incoming frames.
-     */
-    public void run() {
-        receiveHandler();
-    }
-	
-    /**
-     *  Handles all incoming data.
-     */
-    public void receiveHandler() {
-        int size;
-        int channelPtr;
-        int flag;
-        int ctype;
-        int op;
+        m_eventLoop = EventLoopGroup.getDefault().next();
+        m_allocator = m_eventLoop.getAllocator();
 
-        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE + 2);
-        header.order(ByteOrder.BIG_ENDIAN);
-        ByteBuffer data;
+        synchronized (this) {
+            m_handshaked = true;
+        }
 
-        int offset = 0;
-        int n = 1;
+        m_eventLoop.register(this, m_socketChannel);
+    }
 
-        m_listening = true;
+    /**
+     *  Read the HTTP upgrade response. Any bytes received after the
+     *  response are left in the receive buffer.
+     *
+     *  @return The lines of the response, without the empty line that
+     *          terminates it.
+     */
+    private String[] readHandshake() throws IOException {
+        ByteBuffer buffer = m_receiveBuffer;
+        int end = -1;
+        int scanned = 0;
+        byte[] response;
+
+        while (end == -1) {
+            if (buffer.hasRemaining() == false ||
+                m_socketChannel.read(buffer) < 0) {
+                throw new IOException("Bad handshake");
+            }
 
-        for (;;) {
-            try {
-                while(offset < Frame.HEADER_SIZE + 2 && n >= 0) {
-                    n = m_socketChannel.read(header);
-                    offset += n;
+            for (int i = Math.max(scanned - 3, 0);
+                 i + 3 < buffer.position(); i++) {
+                if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' &&
+                    buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                    end = i;
+                    break;
                 }
-            } catch (Exception e) {
-                n = -1;
             }
 
-            if (n <= 0) {
-                destroy(new ChannelError("Could not read from the connection"));
-                break;
-            }
+            scanned = buffer.position();
+        }
 
-            header.flip();
+        response = new byte[end];
 
-            size = (int)header.getShort() & 0xFFFF;
-            data = ByteBuffer.allocate(size - Frame.HEADER_SIZE);
-            data.order(ByteOrder.BIG_ENDIAN);
+        buffer.flip();
+        buffer.get(response);
+        buffer.position(end + 4);
+        buffer.compact();
 
-            try {
-                while(offset < size + 2 && n >= 0) {
-                    n = m_socketChannel.read(data);
-                    offset += n;
-                }
-            } catch (Exception e) {
-                n = -1;
+        return new String(response, "US-ASCII").split("\r\n");
+    }
+
+    /**
+     *  Called by the event loop once the socket has been registered.
+     *
+     *  @param key The selection key of the socket.
+     */
+    void handleRegistered(SelectionKey key) {
+        synchronized (m_writeLock) {
+            m_selectionKey = key;
+
+            if (m_writeOffset < m_writeCount) {
+                setWriteInterest(true);
             }
 
-            if (n <= 0) {
-                destroy(new ChannelError("Could not read from the connection"));
-                break;
+            // Channels may still be draining after a reconnect
+            if (m_readPauses > 0) {
+                updateInterestOps();
             }
+        }
 
-            data.flip();
-            
-            channelPtr = header.getInt();
-            byte of = header.get();
+        startTimer();
 
-            ctype = (of & Frame.CTYPE_BITMASK) >> Frame.CTYPE_BITPOS;
-            op = (of & Frame.OP_BITMASK) >> Frame.OP_BITPOS;
-            flag = (of & Frame.FLAG_BITMASK);
+        // Frames that arrived together with the handshake response
+        // are already in the receive buffer.
+        if (m_receiveBuffer.position() > 0) {
+            m_receiveBuffer.flip();
+            processFrames(m_receiveBuffer);
+            m_receiveBuffer.compact();
+            publishEvents();
+        }
+    }
 
-            switch (op) {
+    /**
+     *  Called by the event loop if the socket was closed before it
+     *  could be registered.
+     */
+    void handleRegisterError() {
+        destroy(new ChannelError("Could not read from the connection"));
+    }
 
-                case Frame.KEEPALIVE:
-                break;
+    /**
+     *  Called by the event loop if a handler failed unexpectedly.
+     *
+     *  @param e The cause of the failure.
+     */
+    void handleFailure(RuntimeException e) {
+        destroy(new ChannelError("Internal error, " + e.getMessage()));
+    }
 
-                case Frame.OPEN:
-                if (HydnaDebug.HYDNADEBUG) {
-                    DebugHelper.debugPrint("Connection",
-                                            channelPtr,
-                                            "Received open response");
-                }
-                processOpenFrame(channelPtr, ctype, flag, data);
+    /**
+     *  Called by the event loop when the socket is readable. Reads all
+     *  available bytes and processes every complete frame.
+     */
+    void handleReadable() {
+        int n;
+
+        try {
+            n = m_socketChannel.read(m_receiveBuffer);
+        } catch (Exception e) {
+            n = -1;
+        }
+
+        if (n < 0) {
+            destroy(new ChannelError("Could not read from the connection"));
+            return;
+        }
+
+        if (m_timerTask != null) {
+            m_lastRead = System.nanoTime();
+        }
+
+        m_receiveBuffer.flip();
+        processFrames(m_receiveBuffer);
+        m_receiveBuffer.compact();
+        publishEvents();
+    }
+
+    /**
+     *  Start the timer that sends keepalives and checks the read timeout
+     *  of the current socket. Called on the event loop thread.
+     */
+    private void startTimer() {
+        final int generation;
+        long now;
+        long delay;
+
+        if (m_keepaliveInterval == 0 && m_readTimeout == 0) {
+            return;
+        }
+
+        generation = ++m_timerGeneration;
+        now = System.nanoTime();
+        m_lastRead = now;
+        m_lastWrite = now;
+        m_probeSent = 0;
+
+        delay = m_keepaliveInterval > 0 ? m_keepaliveInterval : m_readTimeout;
+
+        m_timerTask = m_eventLoop.schedule(new Runnable() {
+            public void run() {
+                long next;
+
+                if (generation != m_timerGeneration || m_connected == false) {
+                    return;
+                }
+
+                if ((next = checkTimer()) > 0) {
+                    m_timerTask = m_eventLoop.schedule(this, next);
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     *  Close the connection if nothing was received within the read
+     *  timeout, and send a keepalive if nothing was written within the
+     *  keepalive interval.
+     *
+     *  @return The time until the timer should run again in nanoseconds,
+     *          or 0 if the connection was closed.
+     */
+    private long checkTimer() {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        long idle;
+
+        if (m_readTimeout > 0) {
+            if (now - m_lastRead >= m_readTimeout) {
+                destroy(new ChannelError("Connection timed out"));
+                return 0;
+            }
+
+            next = m_lastRead + m_readTimeout - now;
+        }
+
+        if (m_keepaliveInterval > 0) {
+            idle = now - m_lastWrite;
+
+            if (idle >= m_keepaliveInterval) {
+                sendKeepalive(now);
+                idle = 0;
+            }
+
+            next = Math.min(next, m_keepaliveInterval - idle);
+        }
+
+        return next;
+    }
+
+    /**
+     *  Send a keepalive. If no round trip probe is outstanding, or the
+     *  last one went unanswered for a whole interval, the keepalive is
+     *  used as the probe, and carries the time it was sent, so that its
+     *  echo can be told apart from keepalives sent by the server.
+     *
+     *  @param now The current time.
+     */
+    private void sendKeepalive(long now) {
+        ByteBuffer probe = null;
+
+        if (m_probeSent == 0 || now - m_probeSent >= m_keepaliveInterval) {
+            m_probeSent = now;
+            probe = ByteBuffer.allocate(8);
+            probe.putLong(0, now);
+        }
+
+        m_lastWrite = now;
+        writeBytes(Frame.create(0,
+                                ContentType.UTF8,
+                                Frame.KEEPALIVE,
+                                0,
+                                probe));
+    }
+
+    /**
+     *  Handle a keepalive from the server. If it is the echo of the
+     *  outstanding probe, the smoothed round trip time is updated the
+     *  way TCP does, with a gain of 1/8.
+     *
+     *  @param data The payload of the keepalive.
+     */
+    private void processKeepaliveFrame(ByteBuffer data) {
+        long sample;
+        long rtt;
+
+        if (m_probeSent == 0 ||
+            data.remaining() != 8 ||
+            data.getLong(data.position()) != m_probeSent) {
+            return;
+        }
+
+        sample = System.nanoTime() - m_probeSent;
+        m_probeSent = 0;
+
+        rtt = m_roundTripTime;
+        m_roundTripTime = rtt < 0 ? sample : rtt + (sample - rtt) / 8;
+    }
+
+    /**
+     *  Returns the smoothed round trip time of the connection, measured
+     *  with keepalives.
+     *
+     *  @return The round trip time in nanoseconds, or -1 if unknown.
+     */
+    long getRoundTripTime() {
+        return m_roundTripTime;
+    }
+
+    /**
+     *  Add an event to a channel, and remember the channel if the event
+     *  must be published once the current read has been processed.
+     *
+     *  @param channel The channel.
+     *  @param event The event.
+     */
+    private void addEvent(Channel channel, ChannelEvent event) {
+        if (channel.addEvent(event)) {
+            m_publishChannels.add(channel);
+        }
+    }
+
+    /**
+     *  Publish the events of all channels that received events in ring
+     *  buffers during the current read.
+     */
+    private void publishEvents() {
+        int count = m_publishChannels.size();
+
+        for (int i = 0; i < count; i++) {
+            m_publishChannels.get(i).publishEvents();
+        }
+
+        m_publishChannels.clear();
+    }
+
+    /**
+     *  Handles all complete frames in the buffer. An incomplete frame at
+     *  the end of the buffer is left for the next read.
+     *
+     *  Payloads are passed on as slices of the buffer, and are only valid
+     *  until the frame has been processed. Payloads that outlive the frame
+     *  are copied with retainPayload.
+     *
+     *  @param buffer The buffer to read frames from.
+     */
+    void processFrames(ByteBuffer buffer) {
+        int size;
+        int channelPtr;
+        int flag;
+        int ctype;
+        int op;
+        int start;
+        int limit;
+        byte of;
+
+        ByteBuffer data;
+
+        limit = buffer.limit();
+
+        while (m_connected && buffer.remaining() >= Frame.HEADER_SIZE + 2) {
+            start = buffer.position();
+            size = (int)buffer.getShort(start) & 0xFFFF;
+
+            if (size < Frame.HEADER_SIZE) {
+                destroy(new ChannelError("Bad frame size received"));
+                return;
+            }
+
+            if (buffer.remaining() < size + 2) {
+                break;
+            }
+
+            channelPtr = buffer.getInt(start + 2);
+            of = buffer.get(start + 6);
+
+            buffer.position(start + Frame.HEADER_SIZE + 2);
+            buffer.limit(start + size + 2);
+            data = buffer.slice();
+            buffer.limit(limit);
+            buffer.position(start + size + 2);
+
+            ctype = (of & Frame.CTYPE_BITMASK) >> Frame.CTYPE_BITPOS;
+            op = (of & Frame.OP_BITMASK) >> Frame.OP_BITPOS;
+            flag = (of & Frame.FLAG_BITMASK);
+
+            m_metrics.frameIn(op, size + 2);
+
+            switch (op) {
+
+                case Frame.KEEPALIVE:
+                processKeepaliveFrame(data);
+                break;
+
+                case Frame.OPEN:
+                if (HydnaDebug.HYDNADEBUG) {
+                    DebugHelper.debugPrint("Connection",
+                                            channelPtr,
+                                            "Received open response");
+                }
+                processOpenFrame(channelPtr, ctype, flag, data);
                 break;
 
                 case Frame.DATA:
@@ -516,13 +1205,6 @@ public class Connection implements Runnable {
                 processResolveFrame(channelPtr, ctype, flag, data);
                 break;
             }
-
-            offset = 0;
-            n = 1;
-            header.clear();
-        }
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Connection", 0, "Listening thread exited");
         }
     }
 	
@@ -539,10 +1221,9 @@ public class Connection implements Runnable {
                                   ByteBuffer data) {
         OpenRequest request;
         Channel channel;
+        ChannelEvent resumed;
 
-        synchronized (this) {
-            request = m_pendingOpenRequest;
-        }
+        request = m_pendingOpens.remove(channelPtr);
 
         if (request == null) {
             destroy(new ChannelError("The server sent a invalid open frame"));
@@ -551,19 +1232,33 @@ public class Connection implements Runnable {
 
         channel = request.getChannel();
 
-        synchronized (this) {
-            m_pendingOpenRequest = null;
-        }
+        m_metrics.opened(System.nanoTime() - request.getSentTime());
 
         if (flag == Frame.OPEN_ALLOW) {
+            // Closed while it was opened again after a reconnect
+            if (channel.getUnderlyingConnection() != this) {
+                writeBytes(Frame.create(channelPtr,
+                                        ContentType.UTF8,
+                                        Frame.SIGNAL,
+                                        Frame.SIG_END));
+                return;
+            }
+
             m_openChannels.put(channelPtr, channel);
+            m_metrics.channelOpened();
 
             if (HydnaDebug.HYDNADEBUG) {
                 DebugHelper.debugPrint("Connection", channelPtr, "A new channel was added");
                 DebugHelper.debugPrint("Connection", channelPtr, "The size of openChannels is now " + m_openChannels.size());
             }
 
-            channel.openSuccess(channelPtr, ctype, data);
+            resumed = channel.openSuccess(channelPtr,
+                                          ctype,
+                                          retainPayload(data));
+
+            if (resumed != null) {
+                addEvent(channel, resumed);
+            }
 
             return;
         }
@@ -572,6 +1267,20 @@ public class Connection implements Runnable {
             DebugHelper.debugPrint("Connection", channelPtr, "The server rejected the open request, errorcode " + flag);
         }
 
+        // The cached pointer may be stale, so resolve the path once
+        // before failing.
+        if (request.isCached()) {
+            m_resolveCache.remove(getEndpoint(), channel.getPath());
+            request.setCached(false);
+
+            if (m_pendingResolves.putIfAbsent(channel.getPath(),
+                                              request) == null) {
+                request.setSentTime(System.nanoTime());
+                writeBytes(request.getResolveFrame());
+                return;
+            }
+        }
+
         ChannelError error = ChannelError.fromOpenError(flag, ctype, data);
         channel.destroy(error);
     }
@@ -589,28 +1298,31 @@ public class Connection implements Runnable {
                                   int flag,
                                   ByteBuffer data) {
         Channel channel;
-        ByteBuffer datac;
+        ByteBuffer shared;
         Iterator<Channel> it;
-        int size;
 
-        if (data == null || data.capacity() == 0) {
+        if (data == null || data.remaining() == 0) {
             destroy(new ChannelError("Zero data frame received"));
             return;
         }
 
-        size = data.capacity();
-
         if (channelPtr == 0) {
+            shared = retainShared(data);
+
+            int deliveries = 0;
+
             it = m_openChannels.values().iterator();
             while (it.hasNext()) {
                 channel = it.next();
-                datac = ByteBuffer.allocate(size);
-                datac.put(data);
-                datac.flip();
-                data.rewind();
-                channel.addEvent(new ChannelData(channel, ctype, flag, datac));
+                addEvent(channel, new ChannelData(channel,
+                                                  ctype,
+                                                  flag,
+                                                  shared.duplicate()));
+                deliveries++;
             }
 
+            m_metrics.broadcast(deliveries);
+
             return;   
         }
 
@@ -621,7 +1333,10 @@ public class Connection implements Runnable {
             return;
         }
 
-        channel.addEvent(new ChannelData(channel, ctype, flag, data));
+        addEvent(channel, new ChannelData(channel,
+                                          ctype,
+                                          flag,
+                                          retainPayload(data)));
     }
 	
     /**
@@ -629,7 +1344,7 @@ public class Connection implements Runnable {
      *
      *  @param channel The channel that should receive the signal.
      *  @param flag The flag of the signal.
-     *  @param payload The content of the signal.
+     *  @param payload The content of the signal, already retained.
      *  @return False is something went wrong.
      */
     private boolean processSignalFrame(Channel channel,
@@ -643,7 +1358,7 @@ public class Connection implements Runnable {
 
             case Frame.SIG_EMIT:
             signal = new ChannelSignal(channel, ctype, data);
-            channel.addEvent(signal);
+            addEvent(channel, signal);
             return false;
 
             case Frame.SIG_END:
@@ -672,23 +1387,20 @@ public class Connection implements Runnable {
                                     int flag,
                                     ByteBuffer data) {
         if (channelPtr == 0) {
-            boolean destroying = false;
-            int size = data.capacity();
+            ByteBuffer shared = retainShared(data);
+
+            // Channels that end are removed from openChannels as they
+            // are destroyed.
+            int deliveries = 0;
 
             Iterator<Channel> it = m_openChannels.values().iterator();
             while (it.hasNext()) {
                 Channel channel = it.next();
-                ByteBuffer datac = ByteBuffer.allocate(size);
-                datac.put(data);
-                datac.flip();
-                datac.rewind();
-
-                if (processSignalFrame(channel, ctype, flag, datac) == false) {
-                    it.remove();
-                }
+                processSignalFrame(channel, ctype, flag, shared.duplicate());
+                deliveries++;
             }
 
-            checkRefCount();
+            m_metrics.broadcast(deliveries);
         } else {
             Channel channel = null;
 
@@ -699,10 +1411,19 @@ public class Connection implements Runnable {
                 return;
             }
 
-            processSignalFrame(channel, ctype, flag, data);
+            processSignalFrame(channel, ctype, flag, retainPayload(data));
         }
     }
 
+    /**
+     *  Process a resolve frame. The reply is matched against the table
+     *  of pending resolves using the path in the payload.
+     *
+     *  @param channelPtr The channel pointer that the path resolved to.
+     *  @param ctype The ContentType of the frame.
+     *  @param flag The flag of the frame.
+     *  @param data The path that was resolved.
+     */
     private void processResolveFrame(int channelPtr,
                                      int ctype,
                                      int flag,
@@ -710,59 +1431,92 @@ public class Connection implements Runnable {
         OpenRequest request;
         Channel channel;
         ChannelError error;
-        ByteBuffer path;
-
-         synchronized (this) {
-             request = m_pendingOpenRequest;
-         }
-
-         if (request == null) {
-             destroy(new ChannelError("The server sent a invalid resolve"));
-             return;
-         }
-
-         channel = request.getChannel();
-
-         if (flag != Frame.OPEN_ALLOW) {
-             error = new ChannelError("Unable to resolve path");
-             channel.destroy(error);
-             return;
-         }
-
-         if (HydnaDebug.HYDNADEBUG) {
-             Charset charset;
-             CharsetDecoder decoder;
-             String content;
-             int pos;
-
-             pos = data.position();
-             charset = Charset.forName("UTF-8");
-             decoder = charset.newDecoder();
-             content = null;
-
-             try {
-                 content = decoder.decode(data).toString();
-             } catch (CharacterCodingException ex) {
-             }
-
-             DebugHelper.debugPrint("Connection",
-                                    channelPtr,
-                                    "received lookup for: '"
-                                        + content + "'");
-         }
+        String path;
+        long now;
 
-         path = request.getPath();
-         path.position(0);
-         data.position(0);
+        path = decodePath(data);
 
-         if (data.equals(path) == false) {
-             error = new ChannelError("Bad path sent by server");
-             channel.destroy(error);
-             return;
-         }
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection",
+                                   channelPtr,
+                                   "received lookup for: '" + path + "'");
+        }
+
+        request = (path == null) ? null : m_pendingResolves.remove(path);
+
+        if (request == null) {
+            destroy(new ChannelError("The server sent a invalid resolve"));
+            return;
+        }
+
+        channel = request.getChannel();
+
+        now = System.nanoTime();
+        m_metrics.resolved(now - request.getSentTime());
+        request.setSentTime(now);
+
+        if (flag != Frame.OPEN_ALLOW) {
+            error = new ChannelError("Unable to resolve path");
+            channel.destroy(error);
+            return;
+        }
+
+        if (m_pendingOpens.putIfAbsent(channelPtr, request) != null) {
+            error = new ChannelError("Channel already open");
+            channel.destroy(error);
+            return;
+        }
+
+        if (m_resolveCache != null) {
+            m_resolveCache.put(getEndpoint(), path, channelPtr);
+        }
+
+        request.setChannelPtr(channelPtr);
+        channel.resolveSuccess();
+    }
+
+    /**
+     *  Copy a payload that is kept after the frame has been processed,
+     *  such as the content of an event. The copy is a slice of a chunk
+     *  owned by the event loop, which avoids an allocation per frame.
+     *
+     *  @param data The payload, a slice of the receive buffer.
+     *  @return A copy of the payload.
+     */
+    private ByteBuffer retainPayload(ByteBuffer data) {
+        return m_allocator.copy(data);
+    }
 
-         request.setChannelPtr(channelPtr);
-         channel.resolveSuccess();
+    /**
+     *  Copy a broadcast payload once, so that it can be shared by all
+     *  channels. Each channel gets a duplicate of the returned buffer,
+     *  with a position of its own, so the payload is read-only.
+     *
+     *  @param data The payload, a slice of the receive buffer.
+     *  @return A read-only copy of the payload.
+     */
+    private ByteBuffer retainShared(ByteBuffer data) {
+        return retainPayload(data).asReadOnlyBuffer();
+    }
+
+    /**
+     *  Decode the path of a resolve frame.
+     *
+     *  @param data The payload of the resolve frame.
+     *  @return The path, or null if it could not be decoded.
+     */
+    private static String decodePath(ByteBuffer data) {
+        Charset charset;
+        CharsetDecoder decoder;
+
+        charset = Charset.forName("US-ASCII");
+        decoder = charset.newDecoder();
+
+        try {
+            return decoder.decode(data.duplicate()).toString();
+        } catch (CharacterCodingException ex) {
+            return null;
+        }
     }
 
     /**
@@ -772,6 +1526,10 @@ public class Connection implements Runnable {
      */
     private void destroy(ChannelError error) {
 
+        if (error != null && m_reconnect && suspend(error)) {
+            return;
+        }
+
         if (HydnaDebug.HYDNADEBUG) {
             String message = "clean shutdown";
 
@@ -785,21 +1543,37 @@ public class Connection implements Runnable {
                                        + message);
         }
 
+        // On a clean shutdown, send what is still queued, such as the
+        // acknowledgement of a received end signal.
+        if (error == null) {
+            flush();
+        }
+
         disposeConnection(this);
 
         synchronized (this) {
             m_destroying = true;
             m_handshaked = false;
+            m_reconnecting = false;
+        }
+
+        for (Channel channel : m_resumeChannels) {
+            channel.destroy(error);
+        }
+
+        m_resumeChannels.clear();
+
+        for (OpenRequest request : m_pendingResolves.values()) {
+            request.getChannel().destroy(error);
         }
 
-        if (m_pendingOpenRequest != null) {
-            m_pendingOpenRequest.getChannel().destroy(error);
-            m_pendingOpenRequest = null;
+        m_pendingResolves.clear();
+
+        for (OpenRequest request : m_pendingOpens.values()) {
+            request.getChannel().destroy(error);
         }
 
-        // It is safe to reset this members, its only
-        // receiver that access them.
-        m_listening = false;
+        m_pendingOpens.clear();
 
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection",
@@ -820,67 +1594,472 @@ public class Connection implements Runnable {
         m_openChannels.clear();
 
 
-        if (m_connected) {
+        closeSocket();
+
+        m_metrics.unregister();
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection", 0, "Destroying connection done");
+        }
+
+        synchronized (this) {
+            m_destroying = false;
+        }
+    }
+
+
+    /**
+     *  Keep the channels of a lost connection, and start reconnecting.
+     *  The open channels are told that the connection is reconnecting,
+     *  and channels that were opening fail, unless they were being
+     *  opened again after an earlier reconnect.
+     *
+     *  @param error The cause of the lost connection.
+     *  @return False if there is nothing to keep, and the connection
+     *          should be destroyed.
+     */
+    private boolean suspend(ChannelError error) {
+        ChannelEvent event;
+        boolean resume = m_openChannels.isEmpty() == false;
+
+        for (OpenRequest request : m_pendingResolves.values()) {
+            resume |= request.getChannel().isResuming();
+        }
+
+        for (OpenRequest request : m_pendingOpens.values()) {
+            resume |= request.getChannel().isResuming();
+        }
+
+        synchronized (this) {
+            if (resume == false || m_destroying || m_reconnecting) {
+                return false;
+            }
+
+            m_reconnecting = true;
+            m_handshaked = false;
+        }
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection", 0,
+                                   "Connection lost, reconnecting: " +
+                                   error.getMessage());
+        }
+
+        closeSocket();
+
+        suspendRequests(m_pendingResolves.values(), error);
+        m_pendingResolves.clear();
+
+        suspendRequests(m_pendingOpens.values(), error);
+        m_pendingOpens.clear();
+
+        for (Channel channel : m_openChannels.values()) {
+            if (channel.isClosing()) {
+                // Closed anyway, without an acknowledgement
+                channel.destroy((ChannelSignal)null);
+                continue;
+            }
+
+            m_resumeChannels.add(channel);
+
+            if ((event = channel.suspend(error)) != null) {
+                addEvent(channel, event);
+            }
+        }
+
+        m_openChannels.clear();
+
+        if (m_eventLoop != null && m_eventLoop.inEventLoop()) {
+            publishEvents();
+        }
+
+        HydnaConfig.newThread(new Runnable() {
+            public void run() {
+                reconnect();
+            }
+        }, "hydna-reconnect-" + getEndpoint()).start();
+
+        return true;
+    }
+
+    private void suspendRequests(Iterable<OpenRequest> requests,
+                                 ChannelError error) {
+        for (OpenRequest request : requests) {
+            if (request.getChannel().isResuming()) {
+                m_resumeChannels.add(request.getChannel());
+            } else {
+                request.getChannel().destroy(error);
+            }
+        }
+    }
+
+    /**
+     *  Try to connect again, with a randomized exponential backoff, and
+     *  open the kept channels once connected. Runs on a thread of its
+     *  own, since the connect is blocking.
+     */
+    private void reconnect() {
+        ChannelError error = null;
+        long backoff = m_reconnectMinDelay;
+        long delay;
+
+        for (int attempt = 0;
+             m_reconnectAttempts == 0 || attempt < m_reconnectAttempts;
+             attempt++) {
+            delay = backoff / 2 +
+                    ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            backoff = Math.min(backoff * 2, m_reconnectMaxDelay);
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (isReconnecting() == false) {
+                return;
+            }
+
             if (HydnaDebug.HYDNADEBUG) {
-                DebugHelper.debugPrint("Connection", 0, "Closing connection");
+                DebugHelper.debugPrint("Connection", 0,
+                                       "Reconnect attempt " +
+                                       (attempt + 1));
             }
 
+            m_connectLock.lock();
             try {
-                m_socketChannel.close();
-            } catch (IOException e) {
+                if (!isHandshaked()) {
+                    connectConnection(m_host, m_port);
+                }
+            } catch (ChannelError e) {
+                error = e;
+                continue;
             } finally {
-                m_socketChannel = null;
+                m_connectLock.unlock();
             }
 
-            m_connected = false;
+            resume();
+            return;
         }
 
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Connection", 0, "Destroying connection done");
+        if (error == null) {
+            error = new ChannelError("Could not reconnect");
         }
 
+        destroy(error);
+    }
+
+    /**
+     *  Open the kept channels on the new connection. The open requests
+     *  are written back to back, so all channels are opened in one
+     *  round trip when their paths are in the resolve cache.
+     */
+    private void resume() {
+        OpenRequest request;
+        Frame frame;
+
         synchronized (this) {
-            m_destroying = false;
+            if (m_reconnecting == false) {
+                // All channels were closed while connecting
+                if (m_channelRefCount == 0) {
+                    destroy(null);
+                }
+                return;
+            }
+            m_reconnecting = false;
         }
+
+        for (Channel channel : m_resumeChannels) {
+            m_resumeChannels.remove(channel);
+
+            if ((request = channel.getOpenRequest()) == null) {
+                continue;
+            }
+
+            try {
+                frame = registerOpen(request);
+            } catch (ChannelError e) {
+                channel.destroy(e);
+                continue;
+            }
+
+            writeBytes(frame);
+        }
+    }
+
+    synchronized boolean isReconnecting() {
+        return m_reconnecting;
     }
 
+    /**
+     *  Close the socket, and drop everything that was queued for it.
+     */
+    private void closeSocket() {
+        if (m_connected) {
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Connection", 0, "Closing connection");
+            }
+
+            synchronized (m_writeLock) {
+                try {
+                    m_socketChannel.close();
+                } catch (IOException e) {
+                } finally {
+                    m_socketChannel = null;
+                }
+
+                m_selectionKey = null;
+                m_writeInterest = false;
+                resetWrites();
+            }
+
+            if (m_timerTask != null) {
+                m_timerTask.cancel();
+                m_timerTask = null;
+            }
+
+            // Let the event loop deregister the closed socket
+            if (m_eventLoop != null) {
+                m_eventLoop.wakeup();
+            }
+
+            m_connected = false;
+        }
+    }
 
     /**
-     *  Writes a frame to the connection.
+     *  Writes a frame to the connection. The frame is added to the
+     *  outbound queue, which is flushed by the event loop of the
+     *  connection. Frames queued before a flush runs are coalesced into
+     *  large gathering writes.
+     *
+     *  When the flush delay is zero, a flush is scheduled right away.
+     *  Otherwise the flush waits for the delay to pass, or for the flush
+     *  batch size to be reached.
+     *
+     *  The payload of the frame is not copied, and is written after the
+     *  method has returned.
      *
      *  @param frame The frame to be sent.
-     *  @return True if the frame was sent.
+     *  @return True if the frame was queued.
      */
     boolean writeBytes(Frame frame) {
+        long queued;
 
         synchronized (this) {
             if (m_handshaked == false ||
                 m_destroying == true) {
+                m_metrics.writeFailure();
                 return false;
             }
         }
 
-        int n = -1;
-        ByteBuffer data = frame.getData();
-        int size = data.capacity();
-        int offset = 0;
+        queued = m_outbound.offer(frame);
 
-        try {
-            while(offset < size) {
-                n = m_socketChannel.write(data);
-                offset += n;
+        if (m_flushDelay == 0 || queued >= m_flushBatchSize) {
+            if (m_flushScheduled.compareAndSet(false, true)) {
+                m_eventLoop.execute(m_flushTask);
             }
-        } catch (Exception e) {
-            n = -1;
+        } else if (m_delayedFlushScheduled.compareAndSet(false, true)) {
+            m_eventLoop.schedule(m_delayedFlushTask, m_flushDelay);
         }
 
-        if (n <= 0) {
-            // We do not destroy the connection at this point, even if we
-            // we have a write error. The receiveHandler will take care of
-            // it.
+        return true;
+    }
+
+    /**
+     *  Called by the event loop when the socket is writable.
+     */
+    void handleWritable() {
+        flush();
+    }
+
+    /**
+     *  Write queued frames to the socket. Frames are taken from the
+     *  outbound queue in batches, and each batch is written with one
+     *  gathering write. If the socket does not accept the whole batch,
+     *  the rest is written once the socket is writable again.
+     */
+    private void flush() {
+        synchronized (m_writeLock) {
+            if (m_socketChannel == null) {
+                m_outbound.clear();
+                return;
+            }
+
+            for (int round = 0; round < MAX_FLUSH_ROUNDS; round++) {
+                if (m_writeOffset == m_writeCount && fillWriteVector() == 0) {
+                    setWriteInterest(false);
+                    return;
+                }
+
+                try {
+                    m_socketChannel.write(m_writeVector,
+                                          m_writeOffset,
+                                          m_writeCount - m_writeOffset);
+                } catch (Exception e) {
+                    // We do not destroy the connection at this point, even
+                    // if we have a write error. The read handler will take
+                    // care of it.
+                    m_metrics.writeFailure();
+                    resetWrites();
+                    return;
+                }
+
+                while (m_writeOffset < m_writeCount &&
+                       m_writeVector[m_writeOffset].hasRemaining() == false) {
+                    m_writeVector[m_writeOffset++] = null;
+                }
+
+                if (m_writeOffset < m_writeCount) {
+                    setWriteInterest(true);
+                    return;
+                }
+            }
+
+            setWriteInterest(false);
+        }
+
+        // There is more to write, continue after the other connections
+        // on the event loop have been served.
+        if (m_outbound.isEmpty() == false &&
+            m_flushScheduled.compareAndSet(false, true)) {
+            m_eventLoop.execute(m_flushTask);
+        }
+    }
+
+    /**
+     *  Take the next batch of frames from the outbound queue. Must be
+     *  called while holding the write lock.
+     *
+     *  @return The number of buffers in the batch.
+     */
+    private int fillWriteVector() {
+        Frame frame;
+        ByteBuffer header;
+        ByteBuffer payload;
+        int frames = 0;
+        int count = 0;
+        int bytes = 0;
+
+        while (frames < MAX_WRITE_FRAMES && bytes < m_flushBatchSize &&
+               (frame = m_outbound.poll()) != null) {
+            header = m_writeHeaders[frames++];
+            header.clear();
+            frame.encodeHeader(header);
+            header.flip();
+
+            m_metrics.frameOut(frame.getOp(), frame.getSize());
+
+            m_writeVector[count++] = header;
+
+            if ((payload = frame.getPayload()) != null) {
+                m_writeVector[count++] = payload;
+            }
+
+            bytes += frame.getSize();
+        }
+
+        m_writeOffset = 0;
+        m_writeCount = count;
+
+        if (count > 0 && m_keepaliveInterval > 0) {
+            m_lastWrite = System.nanoTime();
+        }
+
+        return count;
+    }
+
+    /**
+     *  Drop the batch in progress and all queued frames. Must be called
+     *  while holding the write lock.
+     */
+    private void resetWrites() {
+        while (m_writeOffset < m_writeCount) {
+            m_writeVector[m_writeOffset++] = null;
+        }
+
+        m_writeOffset = 0;
+        m_writeCount = 0;
+
+        m_outbound.clear();
+    }
+
+    /**
+     *  Stop reading from the socket, because the event queue of a channel
+     *  is full. Every call must be matched by a call to resumeReading.
+     *  Reading is paused for all channels of the connection, which lets
+     *  TCP flow control slow down the server.
+     */
+    void pauseReading() {
+        synchronized (m_writeLock) {
+            m_readPauses++;
+            updateInterestOps();
+        }
+    }
+
+    /**
+     *  Resume reading from the socket once all channels that paused it
+     *  have drained their event queues. May be called before the
+     *  matching call to pauseReading.
+     */
+    void resumeReading() {
+        synchronized (m_writeLock) {
+            m_readPauses--;
+
+            if (m_readPauses == 0 && updateInterestOps()) {
+                m_eventLoop.wakeup();
+            }
+        }
+    }
+
+    /**
+     *  Add or remove write interest for the socket. Must be called while
+     *  holding the write lock.
+     *
+     *  @param enabled True if the event loop should wait for the socket
+     *                 to become writable.
+     */
+    private void setWriteInterest(boolean enabled) {
+        if (m_selectionKey == null || m_writeInterest == enabled) {
+            // Picked up when the socket is registered
+            return;
+        }
+
+        m_writeInterest = enabled;
+
+        if (updateInterestOps() && enabled) {
+            m_eventLoop.wakeup();
+        }
+    }
+
+    /**
+     *  Set the interest set of the socket from the current write interest
+     *  and read pauses. Must be called while holding the write lock.
+     *
+     *  @return False if the socket is not registered.
+     */
+    private boolean updateInterestOps() {
+        int ops = 0;
+
+        if (m_selectionKey == null) {
+            return false;
+        }
+
+        if (m_readPauses <= 0) {
+            ops |= SelectionKey.OP_READ;
+        }
+
+        if (m_writeInterest) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        try {
+            m_selectionKey.interestOps(ops);
+        } catch (CancelledKeyException e) {
             return false;
         }
 
         return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,221 @@
+package com.hydna;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ *  This class is used internally by the Connection class.
+ *  The counters of a connection. Frames are counted on the event loop
+ *  thread, and the counters are LongAdders, so that counting costs next
+ *  to nothing on the receive and write paths.
+ */
+class ConnectionMetrics implements ConnectionMetricsMXBean {
+
+    private static final String[] OPCODES = {
+        "KEEPALIVE", "OPEN", "DATA", "SIGNAL", "RESOLVE"
+    };
+
+    // The opcode is three bits, unknown opcodes are counted but not
+    // reported.
+    private static final int SLOTS = 8;
+
+    private final Connection m_connection;
+    private final String m_endpoint;
+
+    private final LongAdder[] m_framesIn = newAdders(SLOTS);
+    private final LongAdder[] m_bytesIn = newAdders(SLOTS);
+    private final LongAdder[] m_framesOut = newAdders(SLOTS);
+    private final LongAdder[] m_bytesOut = newAdders(SLOTS);
+
+    private final LongAdder m_writeFailures = new LongAdder();
+    private final LongAdder m_broadcasts = new LongAdder();
+    private final LongAdder m_broadcastDeliveries = new LongAdder();
+    private final LongAdder m_channelsOpened = new LongAdder();
+    private final LongAdder m_channelsClosed = new LongAdder();
+
+    private final LongAdder m_resolves = new LongAdder();
+    private final LongAdder m_resolveNanos = new LongAdder();
+    private volatile long m_resolveMax = 0;
+
+    private final LongAdder m_opens = new LongAdder();
+    private final LongAdder m_openNanos = new LongAdder();
+    private volatile long m_openMax = 0;
+
+    private volatile ObjectName m_name;
+
+    ConnectionMetrics(Connection connection, String endpoint) {
+        m_connection = connection;
+        m_endpoint = endpoint;
+    }
+
+    void register() {
+        m_name = MetricsRegistry.register(this, "Connection",
+                                          m_endpoint, null);
+    }
+
+    void unregister() {
+        MetricsRegistry.unregister(m_name);
+        m_name = null;
+    }
+
+    void frameIn(int op, int size) {
+        m_framesIn[op].increment();
+        m_bytesIn[op].add(size);
+    }
+
+    void frameOut(int op, int size) {
+        m_framesOut[op].increment();
+        m_bytesOut[op].add(size);
+    }
+
+    void writeFailure() {
+        m_writeFailures.increment();
+    }
+
+    void broadcast(int deliveries) {
+        m_broadcasts.increment();
+        m_broadcastDeliveries.add(deliveries);
+    }
+
+    void channelOpened() {
+        m_channelsOpened.increment();
+    }
+
+    void channelClosed() {
+        m_channelsClosed.increment();
+    }
+
+    /**
+     *  Record a resolve reply. Replies are processed on the event loop
+     *  thread, so the max is only written by one thread.
+     *
+     *  @param nanos The time from the request to the reply.
+     */
+    void resolved(long nanos) {
+        m_resolves.increment();
+        m_resolveNanos.add(nanos);
+
+        if (nanos > m_resolveMax) {
+            m_resolveMax = nanos;
+        }
+    }
+
+    /**
+     *  Record an open reply, see resolved().
+     *
+     *  @param nanos The time from the request to the reply.
+     */
+    void opened(long nanos) {
+        m_opens.increment();
+        m_openNanos.add(nanos);
+
+        if (nanos > m_openMax) {
+            m_openMax = nanos;
+        }
+    }
+
+    public String getEndpoint() {
+        return m_endpoint;
+    }
+
+    public boolean isConnected() {
+        return m_connection.isConnected();
+    }
+
+    public Map<String, Long> getFramesIn() {
+        return byOpcode(m_framesIn);
+    }
+
+    public Map<String, Long> getBytesIn() {
+        return byOpcode(m_bytesIn);
+    }
+
+    public Map<String, Long> getFramesOut() {
+        return byOpcode(m_framesOut);
+    }
+
+    public Map<String, Long> getBytesOut() {
+        return byOpcode(m_bytesOut);
+    }
+
+    public long getWriteFailures() {
+        return m_writeFailures.sum();
+    }
+
+    public long getBroadcasts() {
+        return m_broadcasts.sum();
+    }
+
+    public long getBroadcastDeliveries() {
+        return m_broadcastDeliveries.sum();
+    }
+
+    public int getOpenChannels() {
+        return m_connection.getOpenChannelCount();
+    }
+
+    public long getChannelsOpened() {
+        return m_channelsOpened.sum();
+    }
+
+    public long getChannelsClosed() {
+        return m_channelsClosed.sum();
+    }
+
+    public long getResolves() {
+        return m_resolves.sum();
+    }
+
+    public long getResolveLatencyMean() {
+        return mean(m_resolveNanos, m_resolves);
+    }
+
+    public long getResolveLatencyMax() {
+        return m_resolveMax / 1000;
+    }
+
+    public long getOpens() {
+        return m_opens.sum();
+    }
+
+    public long getOpenLatencyMean() {
+        return mean(m_openNanos, m_opens);
+    }
+
+    public long getOpenLatencyMax() {
+        return m_openMax / 1000;
+    }
+
+    public long getRoundTripTime() {
+        long rtt = m_connection.getRoundTripTime();
+        return rtt < 0 ? -1 : rtt / 1000;
+    }
+
+    private static long mean(LongAdder nanos, LongAdder count) {
+        long n = count.sum();
+        return n == 0 ? 0 : nanos.sum() / n / 1000;
+    }
+
+    private static Map<String, Long> byOpcode(LongAdder[] adders) {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+
+        for (int i = 0; i < OPCODES.length; i++) {
+            map.put(OPCODES[i], adders[i].sum());
+        }
+
+        return map;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+
+        return adders;
+    }
+}
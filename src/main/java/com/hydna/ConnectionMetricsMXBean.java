@@ -0,0 +1,153 @@
+package com.hydna;
+
+import java.util.Map;
+
+/**
+ *  The management interface of a connection, registered with the
+ *  platform MBean server under the name
+ *  com.hydna:type=Connection,endpoint="host:port",id=n
+ *
+ *  Counters start at zero when the connection is created, and are kept
+ *  across reconnects. Frames are counted by opcode: KEEPALIVE, OPEN,
+ *  DATA, SIGNAL and RESOLVE.
+ */
+public interface ConnectionMetricsMXBean {
+
+    /**
+     *  Returns the host and port of the connection.
+     *
+     *  @return The endpoint, as host:port.
+     */
+    String getEndpoint();
+
+    /**
+     *  Checks if the socket of the connection is connected.
+     *
+     *  @return True if connected.
+     */
+    boolean isConnected();
+
+    /**
+     *  Returns the number of frames received, by opcode.
+     *
+     *  @return The number of frames for each opcode.
+     */
+    Map<String, Long> getFramesIn();
+
+    /**
+     *  Returns the number of bytes received, by opcode, including frame
+     *  headers.
+     *
+     *  @return The number of bytes for each opcode.
+     */
+    Map<String, Long> getBytesIn();
+
+    /**
+     *  Returns the number of frames written to the socket, by opcode.
+     *
+     *  @return The number of frames for each opcode.
+     */
+    Map<String, Long> getFramesOut();
+
+    /**
+     *  Returns the number of bytes written to the socket, by opcode,
+     *  including frame headers.
+     *
+     *  @return The number of bytes for each opcode.
+     */
+    Map<String, Long> getBytesOut();
+
+    /**
+     *  Returns the number of frames that could not be written, because
+     *  the connection was not open or the socket write failed.
+     *
+     *  @return The number of failed writes.
+     */
+    long getWriteFailures();
+
+    /**
+     *  Returns the number of data and signal frames that were sent to
+     *  all channels of the connection.
+     *
+     *  @return The number of broadcasts.
+     */
+    long getBroadcasts();
+
+    /**
+     *  Returns the number of events delivered to channels by broadcasts.
+     *  Divided by the number of broadcasts, this is the average fan-out.
+     *
+     *  @return The number of delivered broadcast events.
+     */
+    long getBroadcastDeliveries();
+
+    /**
+     *  Returns the number of channels that are currently open.
+     *
+     *  @return The number of open channels.
+     */
+    int getOpenChannels();
+
+    /**
+     *  Returns the number of channels that have been opened.
+     *
+     *  @return The number of opened channels.
+     */
+    long getChannelsOpened();
+
+    /**
+     *  Returns the number of channels that have been closed.
+     *
+     *  @return The number of closed channels.
+     */
+    long getChannelsClosed();
+
+    /**
+     *  Returns the number of paths resolved by the server.
+     *
+     *  @return The number of resolves.
+     */
+    long getResolves();
+
+    /**
+     *  Returns the mean time from a resolve request to its reply.
+     *
+     *  @return The mean latency in microseconds.
+     */
+    long getResolveLatencyMean();
+
+    /**
+     *  Returns the max time from a resolve request to its reply.
+     *
+     *  @return The max latency in microseconds.
+     */
+    long getResolveLatencyMax();
+
+    /**
+     *  Returns the number of open requests answered by the server.
+     *
+     *  @return The number of opens.
+     */
+    long getOpens();
+
+    /**
+     *  Returns the mean time from an open request to its reply.
+     *
+     *  @return The mean latency in microseconds.
+     */
+    long getOpenLatencyMean();
+
+    /**
+     *  Returns the max time from an open request to its reply.
+     *
+     *  @return The max latency in microseconds.
+     */
+    long getOpenLatencyMax();
+
+    /**
+     *  Returns the smoothed round trip time, measured with keepalives.
+     *
+     *  @return The round trip time in microseconds, or -1 if unknown.
+     */
+    long getRoundTripTime();
+}
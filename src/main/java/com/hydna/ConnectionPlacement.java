@@ -0,0 +1,11 @@
+package com.hydna;
+
+/**
+ *  How a new channel picks one of the connections to a server, when
+ *  more than one connection per server is used. See
+ *  HydnaConfig.setConnectionsPerEndpoint.
+ */
+public class ConnectionPlacement {
+    public static final int LEAST_LOADED = 0x00;
+    public static final int PATH_HASH = 0x01;
+}
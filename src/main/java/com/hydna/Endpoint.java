@@ -0,0 +1,57 @@
+package com.hydna;
+
+/**
+ *  This class is used internally by the Connection class.
+ *  The host and port of a server, used as the key of the connections
+ *  to the server.
+ */
+final class Endpoint {
+
+    private final String m_host;
+    private final int m_port;
+
+    Endpoint(String host, int port) {
+        m_host = host;
+        m_port = port;
+    }
+
+    String getHost() {
+        return m_host;
+    }
+
+    int getPort() {
+        return m_port;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        Endpoint endpoint;
+
+        if (other instanceof Endpoint == false) {
+            return false;
+        }
+
+        endpoint = (Endpoint)other;
+
+        return m_port == endpoint.m_port && m_host.equals(endpoint.m_host);
+    }
+
+    @Override
+    public int hashCode() {
+        return m_host.hashCode() * 31 + m_port;
+    }
+
+    /**
+     *  Returns the endpoint as host:port, with IPv6 addresses in
+     *  brackets.
+     *
+     *  @return The endpoint.
+     */
+    @Override
+    public String toString() {
+        if (m_host.indexOf(':') != -1) {
+            return "[" + m_host + "]:" + m_port;
+        }
+        return m_host + ":" + m_port;
+    }
+}
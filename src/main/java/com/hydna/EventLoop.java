@@ -0,0 +1,243 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  This class is used internally by the Connection class.
+ *  An event loop owns a selector and a thread that serves all the
+ *  connections that are registered with it.
+ */
+class EventLoop implements Runnable {
+
+    private Selector m_selector;
+    private Thread m_thread;
+
+    private Queue<Runnable> m_tasks;
+    private PriorityQueue<ScheduledTask> m_scheduledTasks;
+
+    private ChunkAllocator m_allocator;
+
+    EventLoop(String name) throws IOException {
+        m_selector = Selector.open();
+        m_tasks = new ConcurrentLinkedQueue<Runnable>();
+        m_scheduledTasks = new PriorityQueue<ScheduledTask>();
+
+        m_allocator = new ChunkAllocator(HydnaConfig.getReceiveChunkSize(),
+                                         HydnaConfig.getDirectBuffers());
+
+        m_thread = HydnaConfig.newThread(this, name);
+        m_thread.start();
+    }
+
+    /**
+     *  Checks if the caller is running on the event loop thread.
+     *
+     *  @return True if called from the event loop thread.
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == m_thread;
+    }
+
+    /**
+     *  Returns the allocator for received payloads. The allocator may
+     *  only be used from the event loop thread.
+     *
+     *  @return The allocator.
+     */
+    ChunkAllocator getAllocator() {
+        return m_allocator;
+    }
+
+    /**
+     *  Run a task on the event loop thread.
+     *
+     *  @param task The task to run.
+     */
+    void execute(Runnable task) {
+        m_tasks.add(task);
+
+        if (inEventLoop() == false) {
+            m_selector.wakeup();
+            LockSupport.unpark(m_thread);
+        }
+    }
+
+    /**
+     *  Run a task on the event loop thread after a delay.
+     *
+     *  @param task The task to run.
+     *  @param delay The delay in nanoseconds.
+     *  @return The scheduled task, which can be used to cancel it.
+     */
+    ScheduledTask schedule(Runnable task, long delay) {
+        final ScheduledTask scheduled;
+
+        scheduled = new ScheduledTask(task, System.nanoTime() + delay);
+
+        execute(new Runnable() {
+            public void run() {
+                m_scheduledTasks.add(scheduled);
+            }
+        });
+
+        return scheduled;
+    }
+
+    /**
+     *  Wake up the selector, so that changes to the interest set of a
+     *  key are picked up.
+     */
+    void wakeup() {
+        if (inEventLoop() == false) {
+            m_selector.wakeup();
+            LockSupport.unpark(m_thread);
+        }
+    }
+
+    /**
+     *  Register a connected, non-blocking socket channel with the loop.
+     *
+     *  @param connection The connection that owns the socket.
+     *  @param socketChannel The socket channel to register.
+     */
+    void register(final Connection connection,
+                  final SocketChannel socketChannel) {
+        execute(new Runnable() {
+            public void run() {
+                SelectionKey key;
+
+                try {
+                    key = socketChannel.register(m_selector,
+                                                 SelectionKey.OP_READ,
+                                                 connection);
+                } catch (ClosedChannelException e) {
+                    connection.handleRegisterError();
+                    return;
+                }
+
+                connection.handleRegistered(key);
+            }
+        });
+    }
+
+    /**
+     *  The method that is called in the event loop thread.
+     */
+    public void run() {
+        Iterator<SelectionKey> it;
+        SelectionKey key;
+        Connection connection;
+        long timeout;
+
+        for (;;) {
+            try {
+                timeout = nextTimeout();
+
+                if (m_tasks.isEmpty() == false || timeout == 0) {
+                    m_selector.selectNow();
+                } else if (timeout < 0) {
+                    m_selector.select();
+                } else if (timeout >= 1000000) {
+                    // Due within the last millisecond, which is waited
+                    // for on the next turn
+                    m_selector.select(timeout / 1000000);
+                } else if (m_selector.selectNow() == 0 &&
+                           m_tasks.isEmpty()) {
+                    // Selector.select only takes milliseconds
+                    LockSupport.parkNanos(timeout);
+                }
+            } catch (IOException e) {
+                if (HydnaDebug.HYDNADEBUG) {
+                    DebugHelper.debugPrint("EventLoop", 0,
+                                           "Select failed: " +
+                                           e.getMessage());
+                }
+                continue;
+            }
+
+            runTasks();
+            runScheduledTasks();
+
+            it = m_selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                key = it.next();
+                it.remove();
+
+                connection = (Connection)key.attachment();
+
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWritable();
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleReadable();
+                    }
+                } catch (RuntimeException e) {
+                    connection.handleFailure(e);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Returns the time until the next scheduled task is due.
+     *
+     *  @return The time in nanoseconds, 0 if a task is due, or -1 if
+     *          there are no scheduled tasks.
+     */
+    private long nextTimeout() {
+        ScheduledTask task = m_scheduledTasks.peek();
+
+        if (task == null) {
+            return -1;
+        }
+
+        return Math.max(task.getDeadline() - System.nanoTime(), 0);
+    }
+
+    private void runScheduledTasks() {
+        ScheduledTask task;
+        long now = System.nanoTime();
+
+        while ((task = m_scheduledTasks.peek()) != null &&
+               task.getDeadline() - now <= 0) {
+            m_scheduledTasks.poll();
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                if (HydnaDebug.HYDNADEBUG) {
+                    DebugHelper.debugPrint("EventLoop", 0,
+                                           "Scheduled task failed: " +
+                                           e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = m_tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                if (HydnaDebug.HYDNADEBUG) {
+                    DebugHelper.debugPrint("EventLoop", 0,
+                                           "Task failed: " +
+                                           e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.hydna;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  This class is used internally by the Connection class.
+ *  A fixed set of event loops, that connections are assigned to in
+ *  round-robin order.
+ */
+class EventLoopGroup {
+
+    private static EventLoopGroup m_defaultGroup;
+
+    private EventLoop[] m_loops;
+    private AtomicInteger m_next;
+
+    /**
+     *  Return the group shared by all connections, creating it on first
+     *  use with the number of threads set in HydnaConfig.
+     *
+     *  @return The shared group.
+     */
+    synchronized static EventLoopGroup getDefault() throws ChannelError {
+        if (m_defaultGroup == null) {
+            m_defaultGroup =
+                new EventLoopGroup(HydnaConfig.getEventLoopThreads());
+        }
+        return m_defaultGroup;
+    }
+
+    EventLoopGroup(int threads) throws ChannelError {
+        m_loops = new EventLoop[threads];
+        m_next = new AtomicInteger();
+
+        for (int i = 0; i < threads; i++) {
+            try {
+                m_loops[i] = new EventLoop("hydna-event-loop-" + i);
+            } catch (IOException e) {
+                throw new ChannelError("Could not create event loop");
+            }
+        }
+    }
+
+    /**
+     *  Returns the next event loop in round-robin order.
+     *
+     *  @return An event loop.
+     */
+    EventLoop next() {
+        int index = m_next.getAndIncrement() & Integer.MAX_VALUE;
+        return m_loops[index % m_loops.length];
+    }
+
+    /**
+     *  Returns the number of event loops in the group.
+     *
+     *  @return The number of event loops.
+     */
+    int size() {
+        return m_loops.length;
+    }
+}
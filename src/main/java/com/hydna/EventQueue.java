@@ -0,0 +1,304 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  This class is used internally by the Channel class.
+ *  The queue of received events of a channel, optionally bounded by a
+ *  number of events and a number of payload bytes.
+ *
+ *  Events are offered by one thread at a time, the thread that receives
+ *  data for the channel, and may be polled by any thread.
+ *
+ *  The queue is either linked, which allocates a node per event, or a
+ *  preallocated ring. Events added to a ring become visible to consumers
+ *  when the producer calls publish().
+ */
+class EventQueue {
+
+    static final int ACCEPTED = 0x00;
+    static final int DROPPED = 0x01;
+    static final int PAUSE = 0x02;
+    static final int OVERFLOW = 0x03;
+    static final int PUBLISH = 0x04;
+
+    private final Queue<ChannelEvent> m_queue;
+    private EventRing m_ring = null;
+
+    private final AtomicInteger m_count = new AtomicInteger();
+    private final AtomicLong m_bytes = new AtomicLong();
+    private final AtomicLong m_dropped = new AtomicLong();
+    private final AtomicBoolean m_paused = new AtomicBoolean();
+
+    // Only written by the producer
+    private volatile int m_highWater = 0;
+
+    private volatile int m_maxEvents = 0;
+    private volatile long m_maxBytes = 0;
+    private volatile int m_policy = OverflowPolicy.DROP_NEWEST;
+
+    EventQueue() {
+        m_queue = new ConcurrentLinkedQueue<ChannelEvent>();
+    }
+
+    /**
+     *  Switch to a preallocated ring. Must be called while the queue is
+     *  empty, before events are offered.
+     *
+     *  @param size The min number of events the ring can hold.
+     */
+    void useRing(int size) {
+        m_ring = new EventRing(size);
+    }
+
+    /**
+     *  Returns the number of events the ring can hold.
+     *
+     *  @return The capacity of the ring, or zero if the queue is linked.
+     */
+    int getRingCapacity() {
+        return m_ring == null ? 0 : m_ring.capacity();
+    }
+
+    void setCapacity(int events, long bytes) {
+        m_maxEvents = events;
+        m_maxBytes = bytes;
+    }
+
+    int getMaxEvents() {
+        return m_maxEvents;
+    }
+
+    long getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    void setPolicy(int policy) {
+        m_policy = policy;
+    }
+
+    int getPolicy() {
+        return m_policy;
+    }
+
+    long getDropped() {
+        return m_dropped.get();
+    }
+
+    /**
+     *  Returns the highest number of events that have been in the queue
+     *  at once. For a ring, the size is sampled when events are
+     *  published.
+     *
+     *  @return The high-water mark.
+     */
+    int getHighWaterMark() {
+        return m_highWater;
+    }
+
+    int size() {
+        if (m_ring != null) {
+            return m_ring.size();
+        }
+        return m_count.get();
+    }
+
+    boolean isEmpty() {
+        if (m_ring != null) {
+            return m_ring.isEmpty();
+        }
+        return m_queue.isEmpty();
+    }
+
+    /**
+     *  Add an event to the queue, applying the overflow policy if the
+     *  queue is full. An event is always accepted by an empty queue, even
+     *  if its payload is larger than the byte capacity.
+     *
+     *  @param event The event to add.
+     *  @return ACCEPTED or DROPPED, PAUSE if the event was added and the
+     *          producer should stop reading until the queue has drained,
+     *          OVERFLOW if the event was not added and the channel
+     *          should fail, or PUBLISH if the event was added to the ring
+     *          and must be published.
+     */
+    int offer(ChannelEvent event) {
+        long size;
+        int count;
+
+        if (m_ring != null) {
+            return offerRing(event);
+        }
+
+        size = sizeOf(event);
+
+        if (hasRoom(size) == false) {
+            switch (m_policy) {
+
+                case OverflowPolicy.DROP_OLDEST:
+                while (hasRoom(size) == false && poll() != null) {
+                    m_dropped.incrementAndGet();
+                }
+                break;
+
+                case OverflowPolicy.BLOCK:
+                break;
+
+                case OverflowPolicy.FAIL:
+                return OVERFLOW;
+
+                default:
+                m_dropped.incrementAndGet();
+                return DROPPED;
+            }
+        }
+
+        count = m_count.incrementAndGet();
+        m_bytes.addAndGet(size);
+
+        if (count > m_highWater) {
+            m_highWater = count;
+        }
+
+        m_queue.add(event);
+
+        if (m_policy != OverflowPolicy.BLOCK || isFull() == false) {
+            return ACCEPTED;
+        }
+
+        // Take back the pause if a consumer drained the queue while it
+        // was being set, since that consumer may not see it.
+        if (m_paused.compareAndSet(false, true) &&
+            (isFull() || m_paused.compareAndSet(true, false) == false)) {
+            return PAUSE;
+        }
+
+        return ACCEPTED;
+    }
+
+    /**
+     *  Make the events added to the ring visible to consumers.
+     */
+    void publish() {
+        int count;
+
+        if (m_ring != null) {
+            m_ring.publish();
+
+            if ((count = m_ring.size()) > m_highWater) {
+                m_highWater = count;
+            }
+        }
+    }
+
+    /**
+     *  Remove the event at the head of the queue.
+     *
+     *  @return The event, or null if the queue is empty.
+     */
+    ChannelEvent poll() {
+        ChannelEvent event;
+
+        if (m_ring != null) {
+            return m_ring.poll();
+        }
+
+        event = m_queue.poll();
+
+        if (event != null) {
+            m_count.decrementAndGet();
+            m_bytes.addAndGet(-sizeOf(event));
+        }
+
+        return event;
+    }
+
+    boolean isPaused() {
+        return m_paused.get();
+    }
+
+    /**
+     *  Checks if the producer should resume reading. Returns true only
+     *  once for every PAUSE returned by offer.
+     *
+     *  @return True if the queue was paused and is no longer full.
+     */
+    boolean resume() {
+        return m_paused.get() &&
+               isFull() == false &&
+               m_paused.compareAndSet(true, false);
+    }
+
+    /**
+     *  Remove all events from the queue.
+     *
+     *  @return True if the queue was paused, and the producer should
+     *          resume reading.
+     */
+    boolean clear() {
+        while (poll() != null) {
+        }
+
+        return m_paused.compareAndSet(true, false);
+    }
+
+    /**
+     *  Add an event to the ring. The ring is the capacity, and BLOCK is
+     *  not supported, since a full ring cannot take the rest of a read.
+     */
+    private int offerRing(ChannelEvent event) {
+        if (m_ring.offer(event)) {
+            return PUBLISH;
+        }
+
+        switch (m_policy) {
+
+            case OverflowPolicy.DROP_OLDEST:
+            m_ring.publish();
+            while (m_ring.offer(event) == false) {
+                if (m_ring.poll() != null) {
+                    m_dropped.incrementAndGet();
+                }
+            }
+            return PUBLISH;
+
+            case OverflowPolicy.FAIL:
+            return OVERFLOW;
+
+            default:
+            m_dropped.incrementAndGet();
+            return DROPPED;
+        }
+    }
+
+    private boolean hasRoom(long size) {
+        int maxEvents = m_maxEvents;
+        long maxBytes = m_maxBytes;
+        int count = m_count.get();
+
+        if (count == 0) {
+            return true;
+        }
+
+        return (maxEvents == 0 || count < maxEvents) &&
+               (maxBytes == 0 || m_bytes.get() + size <= maxBytes);
+    }
+
+    private boolean isFull() {
+        int maxEvents = m_maxEvents;
+        long maxBytes = m_maxBytes;
+
+        return (maxEvents != 0 && m_count.get() >= maxEvents) ||
+               (maxBytes != 0 && m_bytes.get() >= maxBytes);
+    }
+
+    private static long sizeOf(ChannelEvent event) {
+        ByteBuffer data = event.getDataWithoutCopy();
+        return data == null ? 0 : data.remaining();
+    }
+}
@@ -0,0 +1,162 @@
+package com.hydna;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  This class is used internally by the EventQueue class.
+ *  A preallocated ring of events with a single producer, the event loop
+ *  thread of the connection.
+ *
+ *  The producer fills slots without making them visible, and publishes
+ *  all of them at once with publish(), typically once per read from the
+ *  socket. The head and tail sequences are padded onto cache lines of
+ *  their own, and each side keeps a cached copy of the other side's
+ *  sequence, so the producer and consumer only touch a shared cache line
+ *  when the cached copy runs out. Consumers take a lock among themselves,
+ *  which is uncontended when a single thread consumes.
+ */
+final class EventRing extends EventRingPad2 {
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(EventRingHead.class,
+                                        "m_head", long.class);
+            TAIL = lookup.findVarHandle(EventRingTail.class,
+                                        "m_tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ChannelEvent[] m_buffer;
+    private final int m_mask;
+
+    private final ReentrantLock m_consumerLock = new ReentrantLock();
+
+    /**
+     *  Create a ring that can hold at least size events. The size is
+     *  rounded up to a power of two.
+     *
+     *  @param size The min number of events.
+     */
+    EventRing(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+
+        m_buffer = new ChannelEvent[capacity];
+        m_mask = capacity - 1;
+    }
+
+    int capacity() {
+        return m_buffer.length;
+    }
+
+    /**
+     *  Fill the next slot, without publishing it. Called by the producer
+     *  only.
+     *
+     *  @param event The event.
+     *  @return False if the ring is full.
+     */
+    boolean offer(ChannelEvent event) {
+        long tail = m_producerTail;
+
+        if (tail - m_headCache >= m_buffer.length) {
+            m_headCache = (long)HEAD.getAcquire(this);
+
+            if (tail - m_headCache >= m_buffer.length) {
+                return false;
+            }
+        }
+
+        m_buffer[(int)tail & m_mask] = event;
+        m_producerTail = tail + 1;
+
+        return true;
+    }
+
+    /**
+     *  Make all filled slots visible to consumers. Called by the producer
+     *  only.
+     */
+    void publish() {
+        TAIL.setRelease(this, m_producerTail);
+    }
+
+    /**
+     *  Remove the event at the head of the ring.
+     *
+     *  @return The event, or null if no published event is available.
+     */
+    ChannelEvent poll() {
+        ChannelEvent event;
+        long head;
+        int index;
+
+        m_consumerLock.lock();
+
+        try {
+            head = m_head;
+
+            if (head >= m_tailCache) {
+                m_tailCache = (long)TAIL.getAcquire(this);
+
+                if (head >= m_tailCache) {
+                    return null;
+                }
+            }
+
+            index = (int)head & m_mask;
+            event = m_buffer[index];
+
+            // Do not keep consumed payloads reachable
+            m_buffer[index] = null;
+
+            HEAD.setRelease(this, head + 1);
+        } finally {
+            m_consumerLock.unlock();
+        }
+
+        return event;
+    }
+
+    boolean isEmpty() {
+        return m_head >= m_tail;
+    }
+
+    int size() {
+        return (int)(m_tail - m_head);
+    }
+}
+
+// Field padding for EventRing. Fields of a superclass are laid out
+// before those of a subclass, which keeps the consumer and producer
+// fields on separate cache lines.
+
+abstract class EventRingPad0 {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class EventRingHead extends EventRingPad0 {
+    volatile long m_head;
+    long m_tailCache;
+}
+
+abstract class EventRingPad1 extends EventRingHead {
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class EventRingTail extends EventRingPad1 {
+    volatile long m_tail;
+    long m_producerTail;
+    long m_headCache;
+}
+
+abstract class EventRingPad2 extends EventRingTail {
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+}
@@ -0,0 +1,139 @@
+package com.hydna;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  This class is used internally by the Channel class.
+ *  The subscription of a Flow.Subscriber to the events of a channel.
+ *  Events are taken from the event queue of the channel as long as there
+ *  is outstanding demand, on whichever thread adds an event, requests
+ *  more, or ends the channel. Only one thread delivers at a time.
+ */
+class EventSubscription implements Flow.Subscription {
+
+    private Channel m_channel;
+    private Flow.Subscriber<? super ChannelEvent> m_subscriber;
+
+    private AtomicLong m_requested;
+    private AtomicInteger m_wip;
+
+    private volatile boolean m_cancelled = false;
+    private boolean m_done = false;
+
+    EventSubscription(Channel channel,
+                      Flow.Subscriber<? super ChannelEvent> subscriber) {
+        m_channel = channel;
+        m_subscriber = subscriber;
+        m_requested = new AtomicLong();
+
+        // Held until start() is called, so that nothing is delivered
+        // before onSubscribe has returned.
+        m_wip = new AtomicInteger(1);
+    }
+
+    public void request(long n) {
+        long current;
+        long next;
+
+        if (n <= 0) {
+            cancel();
+            m_subscriber.onError(new IllegalArgumentException("Demand " +
+                                                              "must be " +
+                                                              "positive"));
+            return;
+        }
+
+        do {
+            current = m_requested.get();
+            next = current + n;
+            if (next < 0) {
+                next = Long.MAX_VALUE;
+            }
+        } while (m_requested.compareAndSet(current, next) == false);
+
+        drain();
+    }
+
+    public void cancel() {
+        if (m_cancelled == false) {
+            m_cancelled = true;
+            m_channel.unsubscribe(this);
+        }
+    }
+
+    /**
+     *  Call onSubscribe, and start delivering events.
+     */
+    void start() {
+        m_subscriber.onSubscribe(this);
+        drainLoop(1);
+    }
+
+    /**
+     *  Deliver queued events within the outstanding demand, and the end
+     *  of the channel once the queue is empty. If a delivery is already in
+     *  progress, it picks up the work instead.
+     */
+    void drain() {
+        if (m_wip.getAndIncrement() == 0) {
+            drainLoop(1);
+        }
+    }
+
+    private void drainLoop(int missed) {
+        for (;;) {
+            if (m_done == false && m_cancelled == false) {
+                deliver();
+            }
+
+            missed = m_wip.addAndGet(-missed);
+
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private void deliver() {
+        long requested = m_requested.get();
+        long emitted = 0;
+        ChannelEvent event;
+        ChannelError error;
+
+        try {
+            while (emitted != requested && m_cancelled == false &&
+                   (event = m_channel.pollEvent()) != null) {
+                m_subscriber.onNext(event);
+                emitted++;
+            }
+
+            if (emitted != 0 && requested != Long.MAX_VALUE) {
+                m_requested.addAndGet(-emitted);
+            }
+
+            if (m_cancelled || m_channel.hasQueuedEvents()) {
+                return;
+            }
+
+            if ((error = m_channel.resetError()) != null) {
+                m_done = true;
+                m_channel.unsubscribe(this);
+                m_subscriber.onError(error);
+            } else if (m_channel.resetEndEvent() != null) {
+                m_done = true;
+                m_channel.unsubscribe(this);
+                m_subscriber.onComplete();
+            }
+        } catch (RuntimeException e) {
+            cancel();
+
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Channel", 0,
+                                       "Subscriber failed: " +
+                                       e.getMessage());
+            }
+        }
+    }
+}
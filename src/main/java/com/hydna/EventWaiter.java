@@ -0,0 +1,138 @@
+package com.hydna;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  This class is used internally by the Channel class.
+ *  Lets consumers wait for a channel to change, using one of the
+ *  strategies in WaitStrategy.
+ *
+ *  Every change is signalled by bumping a sequence. A consumer reads the
+ *  sequence before it checks the channel, and waits only as long as the
+ *  sequence is unchanged, so a signal that arrives between the check and
+ *  the wait is never lost.
+ */
+class EventWaiter {
+
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 50000;
+
+    private final AtomicLong m_sequence = new AtomicLong();
+    private final AtomicInteger m_waiters = new AtomicInteger();
+
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private final Condition m_changed = m_lock.newCondition();
+
+    private volatile int m_strategy = WaitStrategy.BLOCKING;
+
+    void setStrategy(int strategy) {
+        m_strategy = strategy;
+    }
+
+    int getStrategy() {
+        return m_strategy;
+    }
+
+    /**
+     *  Returns the current sequence, to be passed to await.
+     *
+     *  @return The sequence.
+     */
+    long sequence() {
+        return m_sequence.get();
+    }
+
+    /**
+     *  Signal that the channel has changed, and wake up blocked waiters.
+     */
+    void signal() {
+        m_sequence.incrementAndGet();
+
+        if (m_waiters.get() > 0) {
+            m_lock.lock();
+            try {
+                m_changed.signalAll();
+            } finally {
+                m_lock.unlock();
+            }
+        }
+    }
+
+    /**
+     *  Wait until the sequence differs from seen.
+     *
+     *  @param seen The sequence read before the channel was checked.
+     *  @param timeout The max time to wait in nanoseconds, or a negative
+     *                 value to wait forever.
+     *  @return False if the timeout passed.
+     */
+    boolean await(long seen, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout;
+        int tries = 0;
+
+        if (m_strategy == WaitStrategy.BLOCKING) {
+            return block(seen, timeout);
+        }
+
+        while (m_sequence.get() == seen) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if (timeout >= 0 && deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+
+            switch (m_strategy) {
+
+                case WaitStrategy.YIELDING:
+                if (tries < SPIN_TRIES) {
+                    tries++;
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                break;
+
+                case WaitStrategy.TIMED_PARK:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+
+                default:
+                Thread.onSpinWait();
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean block(long seen, long timeout)
+        throws InterruptedException {
+        long nanos = timeout;
+
+        m_lock.lockInterruptibly();
+        m_waiters.incrementAndGet();
+
+        try {
+            while (m_sequence.get() == seen) {
+                if (timeout < 0) {
+                    m_changed.await();
+                } else if (nanos <= 0) {
+                    return false;
+                } else {
+                    nanos = m_changed.awaitNanos(nanos);
+                }
+            }
+            return true;
+        } finally {
+            m_waiters.decrementAndGet();
+            m_lock.unlock();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.hydna;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 class Frame {
     static final short HEADER_SIZE = 0x05;
@@ -36,8 +35,24 @@ class Frame {
     // Upper payload limit (10kb)
     static final int PAYLOAD_MAX_LIMIT = 0xFFFF - HEADER_SIZE;
 	
-    private ByteBuffer m_bytes;
+    // Size of the encoded header, including the length prefix
+    static final int ENCODED_HEADER_SIZE = HEADER_SIZE + 2;
+
+    private int m_channelPtr;
+    private int m_ctype;
+    private int m_op;
+    private int m_flag;
+    private short m_length;
+    private ByteBuffer m_payload;
+
+    // The order in which the frame was queued, see OutboundQueue
+    private long m_sequence;
 	
+    /**
+     *  Create a new frame. The payload is not copied, the frame refers
+     *  to the bytes between the position and the limit of data. The
+     *  position of data is left unchanged.
+     */
     public Frame(int channelPtr,
                  int ctype,
                  int op,
@@ -45,28 +60,20 @@ class Frame {
                  ByteBuffer data) {
         super();
 		
-        short length = HEADER_SIZE;
-		
+        m_length = HEADER_SIZE;
+
         if (data != null) {
-            if (data.capacity() > PAYLOAD_MAX_LIMIT) {
+            if (data.remaining() > PAYLOAD_MAX_LIMIT) {
                 throw new IllegalArgumentException("Payload max limit reached");
-            } else {
-                length += (short)(data.capacity());
             }
-        }
-		
-        m_bytes = ByteBuffer.allocate(length + 2);
-        m_bytes.order(ByteOrder.BIG_ENDIAN);
-		
-        m_bytes.putShort(length);
-        m_bytes.putInt(channelPtr);
-        m_bytes.put((byte)((ctype << CTYPE_BITPOS) | (op << OP_BITPOS) | flag));
-		
-        if (data != null) {
-            m_bytes.put(data);
+            m_payload = data.duplicate();
+            m_length += (short)m_payload.remaining();
         }
 
-        m_bytes.flip();
+        m_channelPtr = channelPtr;
+        m_ctype = ctype;
+        m_op = op;
+        m_flag = flag;
     }
 	
     public static Frame create(int channelPtr, int ctype, int op, int flag) {
@@ -80,8 +87,61 @@ class Frame {
                                ByteBuffer data) {
         return new Frame(channelPtr, ctype, op, flag, data);
     }
-	
-    ByteBuffer getData() {
-        return m_bytes;
+
+    /**
+     *  Encode the header of the frame into a buffer.
+     *
+     *  @param header The buffer to write the header to. At least
+     *                ENCODED_HEADER_SIZE bytes must remain.
+     */
+    void encodeHeader(ByteBuffer header) {
+        header.putShort(m_length);
+        header.putInt(m_channelPtr);
+        header.put((byte)((m_ctype << CTYPE_BITPOS) | (m_op << OP_BITPOS) | m_flag));
+    }
+
+    /**
+     *  Returns the opcode of the frame.
+     *
+     *  @return The opcode.
+     */
+    int getOp() {
+        return m_op;
+    }
+
+    /**
+     *  Returns the flag of the frame. For data frames, the flag is the
+     *  priority of the frame.
+     *
+     *  @return The flag.
+     */
+    int getFlag() {
+        return m_flag;
+    }
+
+    /**
+     *  Returns the payload of the frame.
+     *
+     *  @return The payload, or null if the frame has no payload.
+     */
+    ByteBuffer getPayload() {
+        return m_payload;
+    }
+
+    /**
+     *  Returns the encoded size of the frame, including the header.
+     *
+     *  @return The size of the frame in bytes.
+     */
+    int getSize() {
+        return (m_length & 0xFFFF) + 2;
+    }
+
+    long getSequence() {
+        return m_sequence;
+    }
+
+    void setSequence(long sequence) {
+        m_sequence = sequence;
     }
 }
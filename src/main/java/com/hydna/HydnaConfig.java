@@ -0,0 +1,640 @@
+package com.hydna;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *  Global settings for the library. The settings affect all connections,
+ *  and should be set before the first channel is opened.
+ */
+public final class HydnaConfig {
+
+    private static int m_eventLoopThreads =
+        Runtime.getRuntime().availableProcessors();
+
+    private static ThreadFactory m_threadFactory = null;
+
+    private static boolean m_directBuffers = false;
+    private static int m_receiveChunkSize = 0x10000;
+
+    private static long m_flushDelay = 0;
+    private static int m_flushBatchSize = 0x10000;
+
+    private static int m_priorityStarvationLimit = 16;
+
+    private static long m_resolveCacheTTL = 60000;
+    private static int m_resolveCacheSize = 4096;
+    private static String m_resolveCacheFile = null;
+
+    private static int m_connectionsPerEndpoint = 1;
+    private static int m_connectionPlacement = ConnectionPlacement.LEAST_LOADED;
+    private static long m_connectionLinger = 0;
+    private static int m_maxIdleConnections = 16;
+
+    private static boolean m_jmxEnabled = true;
+    private static boolean m_channelJmxEnabled = false;
+
+    private static long m_keepaliveInterval = 0;
+    private static long m_readTimeout = 0;
+
+    private static boolean m_reconnect = false;
+    private static long m_reconnectMinDelay = 100;
+    private static long m_reconnectMaxDelay = 30000;
+    private static int m_reconnectAttempts = 10;
+
+    private HydnaConfig() {
+    }
+
+    /**
+     *  Set the number of event loop threads that are used to serve
+     *  connections. Each event loop multiplexes many connections on a
+     *  single selector. Defaults to the number of available processors.
+     *
+     *  The setting has no effect once the first connection is created.
+     *
+     *  @param threads The number of event loop threads.
+     */
+    public static synchronized void setEventLoopThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one event loop " +
+                                               "thread is required");
+        }
+        m_eventLoopThreads = threads;
+    }
+
+    /**
+     *  Returns the number of event loop threads.
+     *
+     *  @return The number of event loop threads.
+     */
+    public static synchronized int getEventLoopThreads() {
+        return m_eventLoopThreads;
+    }
+
+    /**
+     *  Use direct buffers for receiving. A direct receive buffer lets the
+     *  socket read without an intermediate copy, and received payloads are
+     *  then handed out as slices of direct chunks. Defaults to false.
+     *
+     *  The setting has no effect once the first connection is created.
+     *
+     *  @param direct True if direct buffers should be used.
+     */
+    public static synchronized void setDirectBuffers(boolean direct) {
+        m_directBuffers = direct;
+    }
+
+    /**
+     *  Returns true if direct buffers are used for receiving.
+     *
+     *  @return True if direct buffers are used.
+     */
+    public static synchronized boolean getDirectBuffers() {
+        return m_directBuffers;
+    }
+
+    /**
+     *  Set the size of the chunks that received payloads are sliced from.
+     *  Payloads larger than an eighth of a chunk get a buffer of their
+     *  own. Defaults to 64kb.
+     *
+     *  A chunk is reclaimed once no event refers to it, so a single small
+     *  event that is kept, or left in an event queue, keeps a whole chunk
+     *  alive. ChannelEvent.getData copies the payload and releases the
+     *  chunk, getDataWithoutCopy does not. Use smaller chunks if many
+     *  events are kept for a long time.
+     *
+     *  The setting has no effect once the first connection is created.
+     *
+     *  @param size The chunk size in bytes.
+     */
+    public static synchronized void setReceiveChunkSize(int size) {
+        if (size < 1024) {
+            throw new IllegalArgumentException("Chunk size must be at " +
+                                               "least 1024 bytes");
+        }
+        m_receiveChunkSize = size;
+    }
+
+    /**
+     *  Returns the size of the chunks that received payloads are sliced
+     *  from.
+     *
+     *  @return The chunk size in bytes.
+     */
+    public static synchronized int getReceiveChunkSize() {
+        return m_receiveChunkSize;
+    }
+
+    /**
+     *  Set how long outgoing frames may wait before they are written.
+     *  Frames that are queued while waiting are coalesced into one
+     *  gathering write. With a delay of zero, which is the default, a
+     *  write is scheduled as soon as a frame is queued, and only frames
+     *  queued before it runs are coalesced.
+     *
+     *  The setting has no effect on connections that are already open.
+     *
+     *  @param micros The max delay in microseconds.
+     */
+    public static synchronized void setFlushDelay(long micros) {
+        if (micros < 0) {
+            throw new IllegalArgumentException("Flush delay cannot be " +
+                                               "negative");
+        }
+        m_flushDelay = micros;
+    }
+
+    /**
+     *  Returns how long outgoing frames may wait before they are written.
+     *
+     *  @return The max delay in microseconds.
+     */
+    public static synchronized long getFlushDelay() {
+        return m_flushDelay;
+    }
+
+    /**
+     *  Set the max number of bytes that are written in one gathering
+     *  write. When a flush delay is set, reaching this number of queued
+     *  bytes also triggers a write before the delay has passed. Defaults
+     *  to 64kb.
+     *
+     *  The setting has no effect on connections that are already open.
+     *
+     *  @param bytes The max batch size in bytes.
+     */
+    public static synchronized void setFlushBatchSize(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("Flush batch size must be " +
+                                               "at least one byte");
+        }
+        m_flushBatchSize = bytes;
+    }
+
+    /**
+     *  Returns the max number of bytes that are written in one gathering
+     *  write.
+     *
+     *  @return The max batch size in bytes.
+     */
+    public static synchronized int getFlushBatchSize() {
+        return m_flushBatchSize;
+    }
+
+    /**
+     *  Set how many frames of a higher priority may be written while
+     *  frames of a lower priority are waiting, before the lower priority
+     *  gets a turn. Defaults to 16.
+     *
+     *  The setting has no effect on connections that are already open.
+     *
+     *  @param frames The max number of frames a priority is passed over.
+     */
+    public static synchronized void setPriorityStarvationLimit(int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException("Starvation limit must be " +
+                                               "at least one frame");
+        }
+        m_priorityStarvationLimit = frames;
+    }
+
+    /**
+     *  Returns how many frames of a higher priority may be written while
+     *  frames of a lower priority are waiting.
+     *
+     *  @return The max number of frames a priority is passed over.
+     */
+    public static synchronized int getPriorityStarvationLimit() {
+        return m_priorityStarvationLimit;
+    }
+
+    /**
+     *  Set how long the channel pointer that a path resolved to is cached.
+     *  While it is cached, channels on the path are opened without first
+     *  resolving the path, which saves a round trip. The entry is removed
+     *  if the server denies an open with a cached pointer, and the path
+     *  is then resolved again. Set to zero to disable the cache. Defaults
+     *  to 60 seconds.
+     *
+     *  The setting has no effect once the first channel is opened.
+     *
+     *  @param millis The time to live in milliseconds.
+     */
+    public static synchronized void setResolveCacheTTL(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Time to live cannot be " +
+                                               "negative");
+        }
+        m_resolveCacheTTL = millis;
+    }
+
+    /**
+     *  Returns how long resolved paths are cached.
+     *
+     *  @return The time to live in milliseconds, or 0 if disabled.
+     */
+    public static synchronized long getResolveCacheTTL() {
+        return m_resolveCacheTTL;
+    }
+
+    /**
+     *  Set the max number of resolved paths that are cached. The least
+     *  recently used path is evicted when the cache is full. Defaults to
+     *  4096.
+     *
+     *  The setting has no effect once the first channel is opened.
+     *
+     *  @param entries The max number of cached paths.
+     */
+    public static synchronized void setResolveCacheSize(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("Cache size must be at " +
+                                               "least one entry");
+        }
+        m_resolveCacheSize = entries;
+    }
+
+    /**
+     *  Returns the max number of resolved paths that are cached.
+     *
+     *  @return The max number of cached paths.
+     */
+    public static synchronized int getResolveCacheSize() {
+        return m_resolveCacheSize;
+    }
+
+    /**
+     *  Set a file that the resolve cache is loaded from when the first
+     *  channel is opened, and saved to when the JVM exits. Lets a
+     *  restarted process open channels without resolving their paths.
+     *  Defaults to null, which keeps the cache in memory only.
+     *
+     *  The setting has no effect once the first channel is opened.
+     *
+     *  @param fileName The name of the file, or null.
+     */
+    public static synchronized void setResolveCacheFile(String fileName) {
+        m_resolveCacheFile = fileName;
+    }
+
+    /**
+     *  Returns the file that the resolve cache is persisted to.
+     *
+     *  @return The name of the file, or null.
+     */
+    public static synchronized String getResolveCacheFile() {
+        return m_resolveCacheFile;
+    }
+
+    /**
+     *  Set the number of connections to use for each server. Channels
+     *  to the same server are spread over the connections, so that the
+     *  load of a server is not limited by a single socket and event loop
+     *  thread. Defaults to 1.
+     *
+     *  The setting has no effect on servers that already have open
+     *  connections.
+     *
+     *  @param connections The number of connections per server.
+     */
+    public static synchronized void setConnectionsPerEndpoint(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("Connections per endpoint " +
+                                               "must be at least 1");
+        }
+        m_connectionsPerEndpoint = connections;
+    }
+
+    /**
+     *  Returns the number of connections to use for each server.
+     *
+     *  @return The number of connections per server.
+     */
+    public static synchronized int getConnectionsPerEndpoint() {
+        return m_connectionsPerEndpoint;
+    }
+
+    /**
+     *  Set how a new channel picks one of the connections to a server,
+     *  one of the values in ConnectionPlacement. LEAST_LOADED, the
+     *  default, picks the connection with the fewest channels.
+     *  PATH_HASH picks a connection by the path of the channel, so that
+     *  a path always uses the same connection.
+     *
+     *  @param placement The placement policy.
+     */
+    public static synchronized void setConnectionPlacement(int placement) {
+        if (placement != ConnectionPlacement.LEAST_LOADED &&
+            placement != ConnectionPlacement.PATH_HASH) {
+            throw new IllegalArgumentException("Invalid connection " +
+                                               "placement");
+        }
+        m_connectionPlacement = placement;
+    }
+
+    /**
+     *  Returns how a new channel picks one of the connections to a
+     *  server.
+     *
+     *  @return The placement policy.
+     */
+    public static synchronized int getConnectionPlacement() {
+        return m_connectionPlacement;
+    }
+
+    /**
+     *  Set how long a connection is kept open after its last channel is
+     *  closed. A channel that is opened to the same server within that
+     *  time reuses the connection, instead of connecting and upgrading a
+     *  new one. Set to zero to close connections right away, which is
+     *  the default.
+     *
+     *  The setting applies to connections that become idle after it is
+     *  changed.
+     *
+     *  @param millis The linger time in milliseconds.
+     */
+    public static synchronized void setConnectionLinger(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Connection linger cannot " +
+                                               "be negative");
+        }
+        m_connectionLinger = millis;
+    }
+
+    /**
+     *  Returns how long a connection is kept open after its last channel
+     *  is closed.
+     *
+     *  @return The linger time in milliseconds, or 0 if disabled.
+     */
+    public static synchronized long getConnectionLinger() {
+        return m_connectionLinger;
+    }
+
+    /**
+     *  Set the max number of idle connections that are kept open, see
+     *  setConnectionLinger. When a connection becomes idle and the limit
+     *  is reached, the connection that has been idle the longest is
+     *  closed. Defaults to 16.
+     *
+     *  @param max The max number of idle connections.
+     */
+    public static synchronized void setMaxIdleConnections(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Max idle connections " +
+                                               "cannot be negative");
+        }
+        m_maxIdleConnections = max;
+    }
+
+    /**
+     *  Returns the max number of idle connections that are kept open.
+     *
+     *  @return The max number of idle connections.
+     */
+    public static synchronized int getMaxIdleConnections() {
+        return m_maxIdleConnections;
+    }
+
+    /**
+     *  Set if connections are registered with the platform MBean server,
+     *  under the com.hydna domain. Enabled by default. Channels are only
+     *  registered if setChannelJmxEnabled is enabled as well. Metrics are
+     *  counted either way, and the metrics of a channel are available
+     *  through Channel.getMetrics.
+     *
+     *  The setting has no effect on connections and channels that are
+     *  already open.
+     *
+     *  @param enabled True if metrics should be registered.
+     */
+    public static synchronized void setJmxEnabled(boolean enabled) {
+        m_jmxEnabled = enabled;
+    }
+
+    /**
+     *  Returns true if metrics are registered with the platform MBean
+     *  server.
+     *
+     *  @return True if metrics are registered.
+     */
+    public static synchronized boolean getJmxEnabled() {
+        return m_jmxEnabled;
+    }
+
+    /**
+     *  Set if each open channel is registered with the platform MBean
+     *  server as well. Disabled by default, since registering costs time
+     *  on every open, and a bean per channel floods the MBean server
+     *  when many channels are open. Has no effect if setJmxEnabled is
+     *  disabled.
+     *
+     *  The setting has no effect on channels that are already open.
+     *
+     *  @param enabled True if channels should be registered.
+     */
+    public static synchronized void setChannelJmxEnabled(boolean enabled) {
+        m_channelJmxEnabled = enabled;
+    }
+
+    /**
+     *  Returns true if each open channel is registered with the platform
+     *  MBean server.
+     *
+     *  @return True if channels are registered.
+     */
+    public static synchronized boolean getChannelJmxEnabled() {
+        return m_channelJmxEnabled;
+    }
+
+    /**
+     *  Set how often a keepalive is sent on each connection. A keepalive
+     *  is sent when nothing else was written within the interval. If the
+     *  server echoes keepalives, the round trips are used to estimate
+     *  the round trip time of the connection, see
+     *  Channel.getRoundTripTime. Set to zero to not send keepalives,
+     *  which is the default.
+     *
+     *  The setting has no effect on connections that are already open.
+     *
+     *  @param millis The interval in milliseconds.
+     */
+    public static synchronized void setKeepaliveInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Keepalive interval cannot " +
+                                               "be negative");
+        }
+        m_keepaliveInterval = millis;
+    }
+
+    /**
+     *  Returns how often a keepalive is sent on each connection.
+     *
+     *  @return The interval in milliseconds, or 0 if disabled.
+     */
+    public static synchronized long getKeepaliveInterval() {
+        return m_keepaliveInterval;
+    }
+
+    /**
+     *  Set how long a connection may go without receiving anything before
+     *  it is considered dead, and is closed, or reconnected if reconnect
+     *  is enabled. Should be a few times the keepalive interval, so that
+     *  idle connections are not closed. Set to zero to wait forever,
+     *  which is the default.
+     *
+     *  The setting has no effect on connections that are already open.
+     *
+     *  @param millis The timeout in milliseconds.
+     */
+    public static synchronized void setReadTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Read timeout cannot be " +
+                                               "negative");
+        }
+        m_readTimeout = millis;
+    }
+
+    /**
+     *  Returns how long a connection may go without receiving anything.
+     *
+     *  @return The timeout in milliseconds, or 0 if disabled.
+     */
+    public static synchronized long getReadTimeout() {
+        return m_readTimeout;
+    }
+
+    /**
+     *  Reconnect when a connection is lost, instead of closing its
+     *  channels with an error. The open channels receive a
+     *  ChannelReconnecting event, and once the connection is back, they
+     *  are opened again with their original mode and token, and receive
+     *  a ChannelResumed event. Channels that were still opening fail as
+     *  before. Defaults to false.
+     *
+     *  The setting has no effect on connections that are already open.
+     *
+     *  @param enabled True if lost connections should be reconnected.
+     */
+    public static synchronized void setReconnect(boolean enabled) {
+        m_reconnect = enabled;
+    }
+
+    /**
+     *  Returns true if lost connections are reconnected.
+     *
+     *  @return True if reconnect is enabled.
+     */
+    public static synchronized boolean getReconnect() {
+        return m_reconnect;
+    }
+
+    /**
+     *  Set the backoff between reconnect attempts. The backoff starts at
+     *  minMillis and doubles for every failed attempt, up to maxMillis.
+     *  The actual delay is a random value between half the backoff and
+     *  the backoff, so that many clients do not reconnect in lockstep.
+     *  Defaults to 100 milliseconds and 30 seconds.
+     *
+     *  @param minMillis The backoff of the first attempt.
+     *  @param maxMillis The max backoff.
+     */
+    public static synchronized void setReconnectBackoff(long minMillis,
+                                                        long maxMillis) {
+        if (minMillis < 1 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid reconnect backoff");
+        }
+        m_reconnectMinDelay = minMillis;
+        m_reconnectMaxDelay = maxMillis;
+    }
+
+    /**
+     *  Returns the backoff of the first reconnect attempt.
+     *
+     *  @return The backoff in milliseconds.
+     */
+    public static synchronized long getReconnectMinDelay() {
+        return m_reconnectMinDelay;
+    }
+
+    /**
+     *  Returns the max backoff between reconnect attempts.
+     *
+     *  @return The backoff in milliseconds.
+     */
+    public static synchronized long getReconnectMaxDelay() {
+        return m_reconnectMaxDelay;
+    }
+
+    /**
+     *  Set how many times to try to reconnect before the channels are
+     *  closed with an error. Set to zero to try forever. Defaults to 10.
+     *
+     *  @param attempts The max number of attempts.
+     */
+    public static synchronized void setReconnectAttempts(int attempts) {
+        if (attempts < 0) {
+            throw new IllegalArgumentException("Reconnect attempts cannot " +
+                                               "be negative");
+        }
+        m_reconnectAttempts = attempts;
+    }
+
+    /**
+     *  Returns how many times to try to reconnect.
+     *
+     *  @return The max number of attempts, or zero for no limit.
+     */
+    public static synchronized int getReconnectAttempts() {
+        return m_reconnectAttempts;
+    }
+
+    /**
+     *  Set the factory that is used to create the threads of the library,
+     *  such as the event loop threads. Set to null to use plain platform
+     *  threads, which is the default. The event loop threads park in
+     *  Selector.select, so the factory should create platform threads.
+     *
+     *  The setting has no effect once the first connection is created.
+     *
+     *  @param factory The thread factory, or null.
+     */
+    public static synchronized void setThreadFactory(ThreadFactory factory) {
+        m_threadFactory = factory;
+    }
+
+    /**
+     *  Returns the factory that is used to create the threads of the
+     *  library.
+     *
+     *  @return The thread factory, or null if platform threads are used.
+     */
+    public static synchronized ThreadFactory getThreadFactory() {
+        return m_threadFactory;
+    }
+
+    /**
+     *  Create a new, unstarted, daemon thread using the configured
+     *  thread factory.
+     *
+     *  @param task The task that the thread should run.
+     *  @param name The name of the thread.
+     *  @return The thread.
+     */
+    static Thread newThread(Runnable task, String name) {
+        ThreadFactory factory = getThreadFactory();
+        Thread thread;
+
+        if (factory == null) {
+            thread = new Thread(task, name);
+        } else {
+            thread = factory.newThread(task);
+            thread.setName(name);
+        }
+
+        thread.setDaemon(true);
+
+        return thread;
+    }
+}
@@ -0,0 +1,93 @@
+package com.hydna;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  This class is used internally by the Channel class.
+ *  Delivers events to a ChannelListener one at a time and in order,
+ *  either on the calling thread or on an Executor.
+ */
+class ListenerDispatcher implements Runnable {
+
+    private ChannelListener m_listener;
+    private Executor m_executor;
+
+    private Queue<Object> m_pending;
+    private AtomicInteger m_wip;
+
+    ListenerDispatcher(ChannelListener listener, Executor executor) {
+        m_listener = listener;
+        m_executor = executor;
+        m_pending = new ConcurrentLinkedQueue<Object>();
+        m_wip = new AtomicInteger();
+    }
+
+    /**
+     *  Add an event or an error for delivery. If the method returns true,
+     *  no delivery was in progress, and the caller must start one with
+     *  schedule(). Otherwise the delivery in progress picks up the event.
+     *
+     *  @param event A ChannelEvent or a ChannelError.
+     *  @return True if a delivery must be started.
+     */
+    boolean offer(Object event) {
+        m_pending.add(event);
+        return m_wip.getAndIncrement() == 0;
+    }
+
+    /**
+     *  Start delivering events, on the calling thread or on the
+     *  executor.
+     */
+    void schedule() {
+        if (m_executor == null) {
+            run();
+        } else {
+            m_executor.execute(this);
+        }
+    }
+
+    public void run() {
+        Object event;
+        int missed = 1;
+
+        for (;;) {
+            while ((event = m_pending.poll()) != null) {
+                deliver(event);
+            }
+
+            missed = m_wip.addAndGet(-missed);
+
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private void deliver(Object event) {
+        try {
+            if (event instanceof ChannelError) {
+                m_listener.onError((ChannelError)event);
+            } else if (event instanceof ChannelEndSignal) {
+                m_listener.onEnd((ChannelEndSignal)event);
+            } else if (event instanceof ChannelSignal) {
+                m_listener.onSignal((ChannelSignal)event);
+            } else if (event instanceof ChannelData) {
+                m_listener.onData((ChannelData)event);
+            } else if (event instanceof ChannelReconnecting) {
+                m_listener.onReconnecting((ChannelReconnecting)event);
+            } else if (event instanceof ChannelResumed) {
+                m_listener.onResumed((ChannelResumed)event);
+            }
+        } catch (RuntimeException e) {
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Channel", 0,
+                                       "Listener failed: " +
+                                       e.getMessage());
+            }
+        }
+    }
+}
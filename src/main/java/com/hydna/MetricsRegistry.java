@@ -0,0 +1,83 @@
+package com.hydna;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *  This class is used internally by the Connection and Channel classes.
+ *  Registers metrics with the platform MBean server. Registration is
+ *  best effort, a failure only means that the metrics are not visible.
+ */
+class MetricsRegistry {
+
+    private static final String DOMAIN = "com.hydna";
+
+    private static final AtomicLong m_nextId = new AtomicLong();
+
+    /**
+     *  Register an MXBean.
+     *
+     *  @param bean The bean to register.
+     *  @param type The type of the bean.
+     *  @param endpoint The endpoint of the connection.
+     *  @param path The path of the channel, or null.
+     *  @return The name of the bean, or null if it was not registered.
+     */
+    static ObjectName register(Object bean,
+                               String type,
+                               String endpoint,
+                               String path) {
+        MBeanServer server;
+        ObjectName name;
+        StringBuilder builder;
+
+        if (HydnaConfig.getJmxEnabled() == false) {
+            return null;
+        }
+
+        builder = new StringBuilder(DOMAIN);
+        builder.append(":type=").append(type);
+        builder.append(",endpoint=").append(ObjectName.quote(endpoint));
+
+        if (path != null) {
+            builder.append(",path=").append(ObjectName.quote(path));
+        }
+
+        builder.append(",id=").append(m_nextId.incrementAndGet());
+
+        try {
+            name = new ObjectName(builder.toString());
+            server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(bean, name);
+        } catch (JMException | SecurityException e) {
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("MetricsRegistry", 0,
+                                       "Unable to register " + type +
+                                       ": " + e.getMessage());
+            }
+            return null;
+        }
+
+        return name;
+    }
+
+    /**
+     *  Unregister a bean that was registered with register().
+     *
+     *  @param name The name of the bean, or null.
+     */
+    static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException | SecurityException e) {
+        }
+    }
+}
@@ -12,6 +12,9 @@ class OpenRequest {
     private int m_channelPtr;
     private int m_mode;
     private ByteBuffer m_token;
+    private boolean m_cached;
+    private long m_createdTime;
+    private long m_sentTime;
 	
     public OpenRequest(Channel channel,
                        ByteBuffer path,
@@ -21,6 +24,7 @@ class OpenRequest {
         m_path = path;
         m_mode = mode;
         m_token = token;
+        m_createdTime = System.nanoTime();
     }
 
     Channel getChannel() {
@@ -35,6 +39,43 @@ class OpenRequest {
         m_channelPtr = channelPtr;
     }
 
+    /**
+     *  Checks if the channel pointer was taken from the resolve cache,
+     *  rather than resolved by the server for this request.
+     *
+     *  @return True if the pointer was cached.
+     */
+    boolean isCached() {
+        return m_cached;
+    }
+
+    void setCached(boolean cached) {
+        m_cached = cached;
+    }
+
+    /**
+     *  Returns when the request was created, as given by System.nanoTime.
+     *
+     *  @return The time the request was created.
+     */
+    long getCreatedTime() {
+        return m_createdTime;
+    }
+
+    /**
+     *  Returns when the last resolve or open frame of the request was
+     *  sent, as given by System.nanoTime.
+     *
+     *  @return The time the last frame was sent.
+     */
+    long getSentTime() {
+        return m_sentTime;
+    }
+
+    void setSentTime(long time) {
+        m_sentTime = time;
+    }
+
     ByteBuffer getPath() {
         return m_path;
     }
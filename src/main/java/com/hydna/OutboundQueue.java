@@ -0,0 +1,187 @@
+package com.hydna;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  This class is used internally by the Connection class.
+ *  The queue of frames waiting to be written to a connection. Frames are
+ *  added by any thread and removed by the event loop of the connection.
+ *
+ *  There is one queue per priority level, where 0 is the highest
+ *  priority. Open, resolve and keepalive frames are always written first.
+ *  Data frames are queued by their priority, and emitted signals with the
+ *  highest priority. End signals are kept apart, and are written once
+ *  every frame that was queued before them has been written, so that
+ *  closing a channel never overtakes data that is already queued.
+ *
+ *  To keep lower priorities from starving, a non-empty level that has
+ *  been passed over a number of times in a row gets the next turn.
+ */
+class OutboundQueue {
+
+    static final int PRIORITY_LEVELS = 8;
+
+    private Queue<Frame> m_control;
+    private Queue<Frame> m_ends;
+    private Queue<Frame>[] m_levels;
+    private int[] m_passes;
+    private int m_starvationLimit;
+
+    private AtomicLong m_bytes;
+    private AtomicLong m_sequence;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    OutboundQueue(int starvationLimit) {
+        m_control = new ConcurrentLinkedQueue<Frame>();
+        m_ends = new ConcurrentLinkedQueue<Frame>();
+        m_levels = new Queue[PRIORITY_LEVELS];
+        m_passes = new int[PRIORITY_LEVELS];
+        m_starvationLimit = starvationLimit;
+
+        for (int i = 0; i < PRIORITY_LEVELS; i++) {
+            m_levels[i] = new ConcurrentLinkedQueue<Frame>();
+        }
+
+        m_bytes = new AtomicLong();
+        m_sequence = new AtomicLong();
+    }
+
+    /**
+     *  Add a frame to the queue.
+     *
+     *  @param frame The frame to add.
+     *  @return The number of bytes queued, including the added frame.
+     */
+    long offer(Frame frame) {
+        switch (frame.getOp()) {
+
+            case Frame.DATA:
+            frame.setSequence(m_sequence.incrementAndGet());
+            m_levels[frame.getFlag()].add(frame);
+            break;
+
+            case Frame.SIGNAL:
+            frame.setSequence(m_sequence.incrementAndGet());
+            if (frame.getFlag() == Frame.SIG_END) {
+                m_ends.add(frame);
+            } else {
+                m_levels[0].add(frame);
+            }
+            break;
+
+            default:
+            m_control.add(frame);
+            break;
+        }
+
+        return m_bytes.addAndGet(frame.getSize());
+    }
+
+    /**
+     *  Remove the next frame to write. Must only be called by the
+     *  event loop of the connection.
+     *
+     *  @return The frame, or null if the queue is empty.
+     */
+    Frame poll() {
+        Frame frame;
+        int chosen = -1;
+        int level;
+
+        if ((frame = m_control.poll()) == null &&
+            (frame = pollEnd()) == null) {
+            for (level = 0; level < PRIORITY_LEVELS; level++) {
+                if (m_levels[level].isEmpty()) {
+                    m_passes[level] = 0;
+                    continue;
+                }
+
+                if (chosen == -1) {
+                    chosen = level;
+                    continue;
+                }
+
+                // A lower level with frames waiting is passed over
+                if (++m_passes[level] >= m_starvationLimit &&
+                    m_passes[chosen] < m_starvationLimit) {
+                    chosen = level;
+                }
+            }
+
+            if (chosen == -1) {
+                return null;
+            }
+
+            m_passes[chosen] = 0;
+            frame = m_levels[chosen].poll();
+        }
+
+        m_bytes.addAndGet(-frame.getSize());
+
+        return frame;
+    }
+
+    /**
+     *  Remove the next end signal, if every frame that was queued before
+     *  it has been written. Each level is in the order the frames were
+     *  queued, so it is enough to look at the first frame of each.
+     *
+     *  @return The frame, or null if there is no end signal to write.
+     */
+    private Frame pollEnd() {
+        Frame end;
+        Frame first;
+
+        if ((end = m_ends.peek()) == null) {
+            return null;
+        }
+
+        for (int i = 0; i < PRIORITY_LEVELS; i++) {
+            first = m_levels[i].peek();
+
+            if (first != null && first.getSequence() < end.getSequence()) {
+                return null;
+            }
+        }
+
+        return m_ends.poll();
+    }
+
+    /**
+     *  Checks if the queue is empty.
+     *
+     *  @return True if there are no frames queued.
+     */
+    boolean isEmpty() {
+        if (m_control.isEmpty() == false || m_ends.isEmpty() == false) {
+            return false;
+        }
+
+        for (int i = 0; i < PRIORITY_LEVELS; i++) {
+            if (m_levels[i].isEmpty() == false) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *  Returns the number of bytes queued.
+     *
+     *  @return The number of bytes.
+     */
+    long getBytes() {
+        return m_bytes.get();
+    }
+
+    /**
+     *  Remove all queued frames. Must only be called while no other
+     *  thread polls the queue.
+     */
+    void clear() {
+        while (poll() != null);
+    }
+}
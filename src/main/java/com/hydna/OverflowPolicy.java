@@ -0,0 +1,12 @@
+package com.hydna;
+
+/**
+ *  What a channel does when an event arrives and its event queue is full.
+ *  See Channel.setEventQueueCapacity.
+ */
+public class OverflowPolicy {
+    public static final int DROP_NEWEST = 0x00;
+    public static final int DROP_OLDEST = 0x01;
+    public static final int BLOCK = 0x02;
+    public static final int FAIL = 0x03;
+}
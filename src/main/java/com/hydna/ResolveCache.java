@@ -0,0 +1,227 @@
+package com.hydna;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  This class is used internally by the Connection class.
+ *  Remembers which channel pointer the server resolved a path to, so
+ *  that a channel can be opened without first resolving its path.
+ *
+ *  Entries are keyed by the host, port and path, expire after a time to
+ *  live, and the least recently used entry is evicted when the cache is
+ *  full. The cache can be loaded from and saved to a file.
+ */
+class ResolveCache {
+
+    private static ResolveCache m_defaultCache;
+
+    private LinkedHashMap<String, Entry> m_entries;
+    private int m_maxEntries;
+    private long m_ttl;
+
+    private static class Entry {
+        int channelPtr;
+        long expires;
+
+        Entry(int channelPtr, long expires) {
+            this.channelPtr = channelPtr;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     *  Return the cache shared by all connections, creating it on first
+     *  use with the settings in HydnaConfig.
+     *
+     *  @return The shared cache, or null if caching is disabled.
+     */
+    synchronized static ResolveCache getDefault() {
+        String fileName;
+
+        if (m_defaultCache == null && HydnaConfig.getResolveCacheTTL() > 0) {
+            m_defaultCache =
+                new ResolveCache(HydnaConfig.getResolveCacheSize(),
+                                 HydnaConfig.getResolveCacheTTL());
+
+            fileName = HydnaConfig.getResolveCacheFile();
+
+            if (fileName != null) {
+                m_defaultCache.persist(new File(fileName));
+            }
+        }
+
+        return m_defaultCache;
+    }
+
+    ResolveCache(int maxEntries, long ttl) {
+        m_maxEntries = maxEntries;
+        m_ttl = ttl;
+
+        m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+                return size() > m_maxEntries;
+            }
+        };
+    }
+
+    /**
+     *  Look up the channel pointer of a path.
+     *
+     *  @param endpoint The host and port of the connection.
+     *  @param path The path.
+     *  @return The channel pointer, or 0 if the path is not cached.
+     */
+    synchronized int get(String endpoint, String path) {
+        String key = endpoint + path;
+        Entry entry = m_entries.get(key);
+
+        if (entry == null) {
+            return 0;
+        }
+
+        if (entry.expires - System.currentTimeMillis() <= 0) {
+            m_entries.remove(key);
+            return 0;
+        }
+
+        return entry.channelPtr;
+    }
+
+    synchronized void put(String endpoint, String path, int channelPtr) {
+        m_entries.put(endpoint + path,
+                      new Entry(channelPtr, System.currentTimeMillis() + m_ttl));
+    }
+
+    synchronized void remove(String endpoint, String path) {
+        m_entries.remove(endpoint + path);
+    }
+
+    /**
+     *  Load the cache from a file, and save it back when the JVM exits.
+     *
+     *  @param file The file.
+     */
+    void persist(final File file) {
+        try {
+            load(file);
+        } catch (IOException e) {
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("ResolveCache", 0,
+                                       "Could not load cache: " +
+                                       e.getMessage());
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    save(file);
+                } catch (IOException e) {
+                    if (HydnaDebug.HYDNADEBUG) {
+                        DebugHelper.debugPrint("ResolveCache", 0,
+                                               "Could not save cache: " +
+                                               e.getMessage());
+                    }
+                }
+            }
+        }, "hydna-resolve-cache"));
+    }
+
+    /**
+     *  Add the entries in a file, written by save, that have not expired.
+     *
+     *  @param file The file.
+     */
+    synchronized void load(File file) throws IOException {
+        BufferedReader reader;
+        String line;
+        String[] fields;
+        long now = System.currentTimeMillis();
+        long expires;
+
+        if (file.exists() == false) {
+            return;
+        }
+
+        reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), StandardCharsets.UTF_8));
+
+        try {
+            while ((line = reader.readLine()) != null) {
+                fields = line.split("\t");
+
+                if (fields.length != 3) {
+                    continue;
+                }
+
+                try {
+                    expires = Long.parseLong(fields[2]);
+
+                    if (expires - now > 0) {
+                        m_entries.put(fields[0],
+                                      new Entry(Integer.parseInt(fields[1]),
+                                                expires));
+                    }
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     *  Write all entries that have not expired to a file. The file is
+     *  replaced once it has been completely written.
+     *
+     *  @param file The file.
+     */
+    synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        BufferedWriter writer;
+        Iterator<Map.Entry<String, Entry>> it;
+        Map.Entry<String, Entry> e;
+        long now = System.currentTimeMillis();
+
+        writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(temp), StandardCharsets.UTF_8));
+
+        try {
+            it = m_entries.entrySet().iterator();
+            while (it.hasNext()) {
+                e = it.next();
+
+                if (e.getValue().expires - now <= 0) {
+                    continue;
+                }
+
+                writer.write(e.getKey() + "\t" +
+                             e.getValue().channelPtr + "\t" +
+                             e.getValue().expires);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (temp.renameTo(file) == false) {
+            file.delete();
+
+            if (temp.renameTo(file) == false) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+}
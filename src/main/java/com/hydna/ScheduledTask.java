@@ -0,0 +1,64 @@
+package com.hydna;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  This class is used internally by the EventLoop class.
+ *  A task that is run by an event loop once its deadline has passed.
+ */
+class ScheduledTask implements Runnable, Comparable<ScheduledTask> {
+
+    private static final AtomicLong m_sequence = new AtomicLong();
+
+    private Runnable m_task;
+    private long m_deadline;
+    private long m_order;
+    private volatile boolean m_cancelled = false;
+
+    ScheduledTask(Runnable task, long deadline) {
+        m_task = task;
+        m_deadline = deadline;
+        m_order = m_sequence.getAndIncrement();
+    }
+
+    /**
+     *  Returns the deadline of the task.
+     *
+     *  @return The deadline, in System.nanoTime() time.
+     */
+    long getDeadline() {
+        return m_deadline;
+    }
+
+    /**
+     *  Cancel the task. A cancelled task is never run.
+     */
+    void cancel() {
+        m_cancelled = true;
+    }
+
+    /**
+     *  Checks if the task is cancelled.
+     *
+     *  @return True if the task is cancelled.
+     */
+    boolean isCancelled() {
+        return m_cancelled;
+    }
+
+    public void run() {
+        if (m_cancelled == false) {
+            m_task.run();
+        }
+    }
+
+    public int compareTo(ScheduledTask other) {
+        long diff = m_deadline - other.m_deadline;
+
+        if (diff == 0) {
+            diff = m_order - other.m_order;
+        }
+
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+    }
+}
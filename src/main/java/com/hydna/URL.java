@@ -1,7 +1,7 @@
 package com.hydna;
 
 public class URL {
-    private short m_port = 80;
+    private int m_port = 80;
     private String m_path;
     private String m_host;
     private String m_token;
@@ -15,7 +15,7 @@ public class URL {
     static URL parse(String expr) {
         URL url = new URL();
         String host = expr;
-        short port = 80;
+        int port = 80;
         String path = "";
         String tokens = "";
         String auth = "";
@@ -58,7 +58,11 @@ public class URL {
         pos = host.lastIndexOf(":");
         if (pos != -1) {
             try {
-                port = Short.parseShort(host.substring(pos + 1), 10);
+                port = Integer.parseInt(host.substring(pos + 1), 10);
+
+                if (port < 1 || port > 0xFFFF) {
+                    throw new NumberFormatException();
+                }
             } catch (NumberFormatException e) {
                 error = "Could not read the port \"" + host.substring(pos + 1) + "\""; 
             }
@@ -77,7 +81,7 @@ public class URL {
         return url;
     }
 
-    public short getPort() {
+    public int getPort() {
         return m_port;
     }
 
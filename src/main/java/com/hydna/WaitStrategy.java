@@ -0,0 +1,12 @@
+package com.hydna;
+
+/**
+ *  How a thread waits in Channel.nextEvent() and Channel.awaitEvents()
+ *  for an event to arrive. See Channel.setWaitStrategy.
+ */
+public class WaitStrategy {
+    public static final int BLOCKING = 0x00;
+    public static final int YIELDING = 0x01;
+    public static final int BUSY_SPIN = 0x02;
+    public static final int TIMED_PARK = 0x03;
+}
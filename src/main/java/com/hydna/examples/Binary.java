@@ -29,7 +29,7 @@ public class Binary {
 
         // The method "nextEvent()" is blocking. See "Listener.java"
         // for an example how to receive without blocking, using
-        // the method "hasEvents()".
+        // a ChannelListener.
         ChannelEvent event = channel.nextEvent();
 
         // Prints "true"
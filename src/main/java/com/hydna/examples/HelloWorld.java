@@ -21,7 +21,7 @@ public class HelloWorld {
 
         // The method "nextEvent()" is blocking. See "Listener.java"
         // for an example how to receive without blocking, using
-        // the method "hasEvents()".
+        // a ChannelListener.
         ChannelEvent event = channel.nextEvent();
         System.out.println(event.getString());
 
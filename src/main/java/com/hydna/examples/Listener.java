@@ -1,25 +1,27 @@
 package com.hydna.examples;
 
-import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.util.concurrent.CountDownLatch;
 
 import com.hydna.Channel;
-import com.hydna.ChannelEvent;
 import com.hydna.ChannelData;
+import com.hydna.ChannelEndSignal;
 import com.hydna.ChannelError;
+import com.hydna.ChannelEvent;
+import com.hydna.ChannelListener;
 import com.hydna.ChannelMode;
+import com.hydna.ChannelSignal;
 
 /**
  *  Listener example
  */
 public class Listener {
     public static void main(String[] args)
-        throws CharacterCodingException, ChannelError, InterruptedException {
+        throws ChannelError, InterruptedException {
 
         ChannelEvent event;
 
+        final CountDownLatch closed = new CountDownLatch(1);
+
         Channel channel = new Channel();
         event = channel.connect("public.hydna.net", ChannelMode.READWRITE);
 
@@ -28,26 +30,39 @@ public class Listener {
             System.out.println("[WELCOME]: " + event.getString());
         }
 
-        System.out.println("Press Ctrl-C to abort the receive loop");
+        // The listener is called on the thread that receives data from
+        // the connection, as soon as an event arrives. Pass an Executor
+        // to "setListener" to have the listener called on other threads.
+        channel.setListener(new ChannelListener() {
+            public void onData(ChannelData data) {
+                if (data.isUtf8Content()) {
+                    System.out.println("[DATA]" + data.getString());
+                } else {
+                    System.out.println("[DATA] <binary>");
+                }
+            }
 
-        for (;;) {
-            if (channel.hasEvents()) {
-                event = channel.nextEvent();
-                if (event instanceof ChannelData) {
-                    if (event.isUtf8Content()) {
-                        System.out.println("[DATA]" + event.getString());
-                    } else {
-                        System.out.println("[DATA] <binary>");
-                    }
+            public void onSignal(ChannelSignal signal) {
+                if (signal.isUtf8Content()) {
+                    System.out.println("[SIGNAL]" + signal.getString());
                 } else {
-                    if (event.isUtf8Content()) {
-                        System.out.println("[SIGNAL]" + event.getString());
-                    } else {
-                        System.out.println("[SIGNAL] <binary>");
-                    }
+                    System.out.println("[SIGNAL] <binary>");
                 }
             }
-            Thread.sleep(1);
-        }
+
+            public void onEnd(ChannelEndSignal signal) {
+                System.out.println("[END]");
+                closed.countDown();
+            }
+
+            public void onError(ChannelError error) {
+                System.out.println("[ERROR]" + error.getMessage());
+                closed.countDown();
+            }
+        });
+
+        System.out.println("Press Ctrl-C to abort the receive loop");
+
+        closed.await();
     }
 }
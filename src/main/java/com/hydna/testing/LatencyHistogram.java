@@ -0,0 +1,145 @@
+package com.hydna.testing;
+
+/**
+ *  This class is used internally by the LoadGenerator class.
+ *  A histogram of latencies in nanoseconds, laid out like an HDR
+ *  histogram: values below 2048 are counted exactly, and larger values
+ *  in buckets that keep the 11 most significant bits, so every value is
+ *  reported within 0.1% of what was recorded. Values above an hour are
+ *  counted as an hour.
+ *
+ *  A histogram is not thread-safe. Each recording thread keeps its own,
+ *  and they are merged when the run is over.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS >> 1;
+
+    // The highest bit of the largest tracked value, 2^42ns is 73 minutes
+    private static final int MAX_EXPONENT = 42;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+    private final long[] m_counts;
+    private long m_count = 0;
+    private long m_sum = 0;
+    private long m_max = 0;
+
+    LatencyHistogram() {
+        m_counts = new long[SUB_BUCKETS +
+                            (MAX_EXPONENT - SUB_BUCKET_BITS) * HALF];
+    }
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+
+        m_counts[indexOf(value)]++;
+        m_count++;
+        m_sum += value;
+
+        if (value > m_max) {
+            m_max = value;
+        }
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < m_counts.length; i++) {
+            m_counts[i] += other.m_counts[i];
+        }
+
+        m_count += other.m_count;
+        m_sum += other.m_sum;
+        m_max = Math.max(m_max, other.m_max);
+    }
+
+    long getCount() {
+        return m_count;
+    }
+
+    long getMax() {
+        return m_max;
+    }
+
+    long getMean() {
+        return m_count == 0 ? 0 : m_sum / m_count;
+    }
+
+    /**
+     *  Returns the value below which a percentage of the recorded values
+     *  fall, as the highest value of its bucket.
+     *
+     *  @param percentile The percentage, from 0 to 100.
+     *  @return The value, or 0 if nothing was recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        long target;
+        long seen = 0;
+
+        if (m_count == 0) {
+            return 0;
+        }
+
+        target = Math.max(1, (long)Math.ceil(percentile / 100 * m_count));
+
+        for (int i = 0; i < m_counts.length; i++) {
+            seen += m_counts[i];
+
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), m_max);
+            }
+        }
+
+        return m_max;
+    }
+
+    /**
+     *  Returns the number of buckets, for iterating with getBucketValue
+     *  and getBucketCount.
+     *
+     *  @return The number of buckets.
+     */
+    int getBucketCount() {
+        return m_counts.length;
+    }
+
+    long getBucketValue(int index) {
+        return highestValueOf(index);
+    }
+
+    long getBucketCount(int index) {
+        return m_counts[index];
+    }
+
+    private static int indexOf(long value) {
+        int exponent;
+
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+
+        exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        return SUB_BUCKETS +
+               (exponent - SUB_BUCKET_BITS) * HALF +
+               (int)(value >>> (exponent - SUB_BUCKET_BITS + 1)) - HALF;
+    }
+
+    private static long highestValueOf(int index) {
+        int shift;
+        long sub;
+
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        shift = (index - SUB_BUCKETS) / HALF + 1;
+        sub = (index - SUB_BUCKETS) % HALF + HALF;
+
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,528 @@
+package com.hydna.testing;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hydna.Channel;
+import com.hydna.ChannelData;
+import com.hydna.ChannelEndSignal;
+import com.hydna.ChannelError;
+import com.hydna.ChannelEvent;
+import com.hydna.ChannelListener;
+import com.hydna.ChannelMode;
+import com.hydna.ChannelSignal;
+import com.hydna.HydnaConfig;
+
+/**
+ *  Drives load through Channel, and measures throughput and the latency
+ *  from a send to its echo. Run it from the command line with
+ *  "java com.hydna.testing.LoadGenerator [options]", see usage().
+ *
+ *  Messages are sent at a fixed total rate, round robin over all
+ *  channels. Each message carries the time it was scheduled to be sent,
+ *  rather than the time it was sent, so that a stalled sender shows up
+ *  as latency instead of hiding it. Echoes are received by listeners,
+ *  on the event loop or on a pool of reader threads.
+ *
+ *  Without a URL, the load goes to a TestServer in the same process.
+ */
+public class LoadGenerator {
+
+    private String m_url = null;
+    private int m_connections = 1;
+    private int m_channels = 10;
+    private int m_size = 64;
+    private int m_rate = 10000;
+    private int m_readers = 0;
+    private long m_duration = 10;
+    private long m_warmup = 2;
+
+    // Results
+    private LatencyHistogram m_histogram;
+    private long m_sent;
+    private long m_received;
+    private long m_errors;
+    private double m_elapsed;
+
+    private final List<LatencyHistogram> m_histograms =
+        new ArrayList<LatencyHistogram>();
+    private final ThreadLocal<LatencyHistogram> m_localHistogram =
+        new ThreadLocal<LatencyHistogram>() {
+            protected LatencyHistogram initialValue() {
+                LatencyHistogram histogram = new LatencyHistogram();
+                synchronized (m_histograms) {
+                    m_histograms.add(histogram);
+                }
+                return histogram;
+            }
+        };
+
+    private final AtomicLong m_receivedCount = new AtomicLong();
+    private final AtomicLong m_errorCount = new AtomicLong();
+    private volatile long m_measureStart;
+    private volatile long m_measureEnd;
+
+    /**
+     *  Set the URL of the server, without the path. The channels are
+     *  opened on the paths /load/0, /load/1 and so on.
+     *
+     *  @param url The URL, e.g. "localhost:7010", or null to use a
+     *             TestServer in the same process.
+     */
+    public void setUrl(String url) {
+        m_url = url;
+    }
+
+    /**
+     *  Set the number of connections to the server.
+     *
+     *  @param connections The number of connections.
+     */
+    public void setConnections(int connections) {
+        m_connections = atLeast(1, connections, "connections");
+    }
+
+    /**
+     *  Set the number of channels on each connection.
+     *
+     *  @param channels The number of channels.
+     */
+    public void setChannels(int channels) {
+        m_channels = atLeast(1, channels, "channels");
+    }
+
+    /**
+     *  Set the size of each message. Messages carry a 16 byte header.
+     *
+     *  @param size The size in bytes.
+     */
+    public void setMessageSize(int size) {
+        m_size = atLeast(PayloadGenerator.TIMESTAMP_SIZE, size, "size");
+    }
+
+    /**
+     *  Set the number of messages sent per second, over all channels.
+     *
+     *  @param rate The rate.
+     */
+    public void setRate(int rate) {
+        m_rate = atLeast(1, rate, "rate");
+    }
+
+    /**
+     *  Set the number of threads that receive echoes. With zero threads,
+     *  echoes are received on the event loop threads of the library.
+     *
+     *  @param readers The number of threads.
+     */
+    public void setReaders(int readers) {
+        m_readers = atLeast(0, readers, "readers");
+    }
+
+    /**
+     *  Set how long the load is measured, after the warmup.
+     *
+     *  @param seconds The duration in seconds.
+     */
+    public void setDuration(long seconds) {
+        m_duration = atLeast(1, (int)seconds, "duration");
+    }
+
+    /**
+     *  Set how long the load runs before it is measured.
+     *
+     *  @param seconds The warmup in seconds.
+     */
+    public void setWarmup(long seconds) {
+        m_warmup = atLeast(0, (int)seconds, "warmup");
+    }
+
+    /**
+     *  Run the load, and keep the results for printSummary and toJson.
+     */
+    public void run() throws ChannelError, IOException, InterruptedException {
+        TestServer server = null;
+        ExecutorService readers = null;
+        List<Channel> channels = new ArrayList<Channel>();
+        List<CompletableFuture<ChannelEvent>> opens;
+        String url = m_url;
+        int connectionsPerEndpoint;
+
+        // Only for the connections of this run
+        connectionsPerEndpoint = HydnaConfig.getConnectionsPerEndpoint();
+        HydnaConfig.setConnectionsPerEndpoint(m_connections);
+
+        if (url == null) {
+            server = new TestServer();
+            server.start();
+            url = "localhost:" + server.getPort();
+        }
+
+        if (m_readers > 0) {
+            readers = Executors.newFixedThreadPool(m_readers,
+                                                   new ThreadFactory() {
+                private int m_next = 0;
+
+                public synchronized Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "hydna-load-reader-" +
+                                                     m_next++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        opens = new ArrayList<CompletableFuture<ChannelEvent>>();
+
+        try {
+            // All opens are in flight at once, and the channels are used
+            // once every open is done
+            for (int i = 0; i < m_connections * m_channels; i++) {
+                Channel channel = new Channel();
+                channel.setListener(new EchoListener(), readers);
+                opens.add(channel.connectAsync(url + "/load/" + i,
+                                               ChannelMode.READWRITE));
+                channels.add(channel);
+            }
+
+            for (CompletableFuture<ChannelEvent> open : opens) {
+                awaitOpen(open);
+            }
+
+            send(channels);
+
+            // Wait for the last echoes
+            Thread.sleep(1000);
+        } finally {
+            for (Channel channel : channels) {
+                try {
+                    channel.close();
+                } catch (ChannelError e) {
+                }
+            }
+
+            if (readers != null) {
+                readers.shutdown();
+                readers.awaitTermination(5, TimeUnit.SECONDS);
+            }
+
+            if (server != null) {
+                server.close();
+            }
+
+            HydnaConfig.setConnectionsPerEndpoint(connectionsPerEndpoint);
+        }
+
+        m_histogram = new LatencyHistogram();
+
+        synchronized (m_histograms) {
+            for (LatencyHistogram histogram : m_histograms) {
+                m_histogram.add(histogram);
+            }
+        }
+
+        m_received = m_receivedCount.get();
+        m_errors = m_errorCount.get();
+    }
+
+    /**
+     *  Wait for a channel to open.
+     *
+     *  @param open The future returned by connectAsync.
+     */
+    private static void awaitOpen(CompletableFuture<ChannelEvent> open)
+        throws ChannelError, InterruptedException {
+        Throwable cause;
+
+        try {
+            open.get();
+        } catch (ExecutionException e) {
+            cause = e.getCause();
+
+            if (cause instanceof ChannelError) {
+                throw (ChannelError)cause;
+            }
+
+            throw new ChannelError(String.valueOf(cause.getMessage()));
+        }
+    }
+
+    /**
+     *  Send messages at the configured rate until the warmup and the
+     *  measurement are over.
+     */
+    private void send(List<Channel> channels) throws ChannelError {
+        long start = System.nanoTime();
+        long interval = TimeUnit.SECONDS.toNanos(1) / m_rate;
+        long end;
+        long scheduled;
+        long sequence = 0;
+        long sent = 0;
+        ByteBuffer message = ByteBuffer.allocate(m_size);
+        Channel channel;
+
+        m_measureStart = start + TimeUnit.SECONDS.toNanos(m_warmup);
+        m_measureEnd = m_measureStart + TimeUnit.SECONDS.toNanos(m_duration);
+        end = m_measureEnd;
+
+        for (;;) {
+            scheduled = start + sequence * interval;
+
+            if (scheduled >= end) {
+                break;
+            }
+
+            if (scheduled > System.nanoTime()) {
+                LockSupport.parkNanos(scheduled - System.nanoTime());
+                continue;
+            }
+
+            // Copied by send, so the buffer is reused
+            message.putLong(0, scheduled);
+            message.putLong(8, sequence);
+
+            channel = channels.get((int)(sequence % channels.size()));
+
+            if (channel.send(message) == false) {
+                m_errorCount.incrementAndGet();
+            } else if (scheduled >= m_measureStart) {
+                sent++;
+            }
+
+            sequence++;
+        }
+
+        m_sent = sent;
+        m_elapsed = (double)(end - m_measureStart) / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     *  Print the results in a readable form.
+     *
+     *  @param out The stream to print to.
+     */
+    public void printSummary(PrintStream out) {
+        out.printf(Locale.ROOT, "channels      %d x %d%n",
+                   m_connections, m_channels);
+        out.printf(Locale.ROOT, "sent          %d (%.0f msg/s)%n",
+                   m_sent, m_sent / m_elapsed);
+        out.printf(Locale.ROOT, "received      %d (%.0f msg/s, %.2f MB/s)%n",
+                   m_received, m_received / m_elapsed,
+                   m_received * (double)m_size / m_elapsed / 1e6);
+        out.printf(Locale.ROOT, "errors        %d%n", m_errors);
+        out.printf(Locale.ROOT, "latency (us)  p50 %.1f  p99 %.1f  " +
+                   "p99.9 %.1f  max %.1f%n",
+                   micros(m_histogram.getValueAtPercentile(50)),
+                   micros(m_histogram.getValueAtPercentile(99)),
+                   micros(m_histogram.getValueAtPercentile(99.9)),
+                   micros(m_histogram.getMax()));
+    }
+
+    /**
+     *  Returns the results as JSON, including the non-empty buckets of
+     *  the latency histogram.
+     *
+     *  @return The results.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        double[] percentiles = {50, 90, 99, 99.9, 99.99, 100};
+        boolean first = true;
+
+        json.append("{\n");
+        json.append("  \"config\": {");
+        json.append("\"url\": ").append(m_url == null ? "null" :
+                                        quote(m_url));
+        json.append(", \"connections\": ").append(m_connections);
+        json.append(", \"channels\": ").append(m_channels);
+        json.append(", \"size\": ").append(m_size);
+        json.append(", \"rate\": ").append(m_rate);
+        json.append(", \"readers\": ").append(m_readers);
+        json.append(", \"duration\": ").append(m_duration);
+        json.append(", \"warmup\": ").append(m_warmup);
+        json.append("},\n");
+        json.append("  \"sent\": ").append(m_sent).append(",\n");
+        json.append("  \"received\": ").append(m_received).append(",\n");
+        json.append("  \"errors\": ").append(m_errors).append(",\n");
+        json.append(String.format(Locale.ROOT,
+                                  "  \"throughput\": %.1f,%n",
+                                  m_received / m_elapsed));
+        json.append("  \"latency\": {\"unit\": \"ns\"");
+        json.append(", \"count\": ").append(m_histogram.getCount());
+        json.append(", \"mean\": ").append(m_histogram.getMean());
+
+        for (double percentile : percentiles) {
+            json.append(", \"p").append(String.valueOf(percentile)
+                                              .replaceAll("\\.0$", ""));
+            json.append("\": ");
+            json.append(m_histogram.getValueAtPercentile(percentile));
+        }
+
+        json.append("},\n");
+        json.append("  \"histogram\": [");
+
+        for (int i = 0; i < m_histogram.getBucketCount(); i++) {
+            if (m_histogram.getBucketCount(i) == 0) {
+                continue;
+            }
+
+            json.append(first ? "" : ", ");
+            json.append("[").append(m_histogram.getBucketValue(i));
+            json.append(", ").append(m_histogram.getBucketCount(i));
+            json.append("]");
+            first = false;
+        }
+
+        json.append("]\n}\n");
+
+        return json.toString();
+    }
+
+    private class EchoListener implements ChannelListener {
+
+        public void onData(ChannelData data) {
+            long received = System.nanoTime();
+            ByteBuffer payload = data.getDataWithoutCopy();
+            long scheduled = payload.getLong(payload.position());
+
+            if (scheduled < m_measureStart || scheduled >= m_measureEnd) {
+                return;
+            }
+
+            m_receivedCount.incrementAndGet();
+            m_localHistogram.get().record(received - scheduled);
+        }
+
+        public void onSignal(ChannelSignal signal) {
+        }
+
+        public void onEnd(ChannelEndSignal signal) {
+        }
+
+        public void onError(ChannelError error) {
+            m_errorCount.incrementAndGet();
+        }
+    }
+
+    private static int atLeast(int min, int value, String name) {
+        if (value < min) {
+            throw new IllegalArgumentException("The " + name + " must be " +
+                                               "at least " + min);
+        }
+        return value;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    /**
+     *  Quote a string for JSON.
+     *
+     *  @param value The string.
+     *  @return The quoted and escaped string.
+     */
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        char c;
+
+        for (int i = 0; i < value.length(); i++) {
+            c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int)c));
+            } else {
+                quoted.append(c);
+            }
+        }
+
+        return quoted.append('"').toString();
+    }
+
+    private static void usage() {
+        System.err.println(
+            "usage: LoadGenerator [options]\n" +
+            "  --url host:port     server to load, default is an\n" +
+            "                      embedded TestServer\n" +
+            "  --connections n     connections, default 1\n" +
+            "  --channels n        channels per connection, default 10\n" +
+            "  --size bytes        message size, default 64\n" +
+            "  --rate n            messages per second, default 10000\n" +
+            "  --readers n         reader threads, default 0 (event loop)\n" +
+            "  --duration s        measured seconds, default 10\n" +
+            "  --warmup s          warmup seconds, default 2\n" +
+            "  --output file       write the results as JSON");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        String output = null;
+        String name;
+        String value;
+
+        for (int i = 0; i < args.length; i += 2) {
+            name = args[i];
+
+            if (i + 1 >= args.length) {
+                usage();
+            }
+
+            value = args[i + 1];
+
+            try {
+                if (name.equals("--url")) {
+                    generator.setUrl(value);
+                } else if (name.equals("--connections")) {
+                    generator.setConnections(Integer.parseInt(value));
+                } else if (name.equals("--channels")) {
+                    generator.setChannels(Integer.parseInt(value));
+                } else if (name.equals("--size")) {
+                    generator.setMessageSize(Integer.parseInt(value));
+                } else if (name.equals("--rate")) {
+                    generator.setRate(Integer.parseInt(value));
+                } else if (name.equals("--readers")) {
+                    generator.setReaders(Integer.parseInt(value));
+                } else if (name.equals("--duration")) {
+                    generator.setDuration(Long.parseLong(value));
+                } else if (name.equals("--warmup")) {
+                    generator.setWarmup(Long.parseLong(value));
+                } else if (name.equals("--output")) {
+                    output = value;
+                } else {
+                    usage();
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                usage();
+            }
+        }
+
+        generator.run();
+        generator.printSummary(System.out);
+
+        if (output != null) {
+            try (Writer writer = new FileWriter(output)) {
+                writer.write(generator.toJson());
+            }
+        }
+
+        System.exit(0);
+    }
+}
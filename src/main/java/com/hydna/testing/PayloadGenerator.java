@@ -0,0 +1,111 @@
+package com.hydna.testing;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *  Generates the payloads that a TestServer publishes on a channel, see
+ *  TestServer.generate.
+ */
+public interface PayloadGenerator {
+
+    /**
+     *  The size of the header written by timestamped generators.
+     */
+    int TIMESTAMP_SIZE = 16;
+
+    /**
+     *  Returns the next payload. The returned buffer is not changed by
+     *  the server, and may be reused for later payloads.
+     *
+     *  @param sequence The number of payloads generated before this one.
+     *  @return The payload, between position and limit.
+     */
+    ByteBuffer next(long sequence);
+
+    /**
+     *  Returns a generator of payloads of a fixed size.
+     *
+     *  @param size The size of the payloads.
+     *  @return The generator.
+     */
+    static PayloadGenerator fixed(final int size) {
+        final ByteBuffer payload = fill(size);
+
+        return new PayloadGenerator() {
+            public ByteBuffer next(long sequence) {
+                return payload.duplicate();
+            }
+        };
+    }
+
+    /**
+     *  Returns a generator of payloads with a random size.
+     *
+     *  @param min The min size of a payload.
+     *  @param max The max size of a payload.
+     *  @return The generator.
+     */
+    static PayloadGenerator random(final int min, final int max) {
+        final ByteBuffer payload = fill(max);
+
+        if (min < 1 || min > max) {
+            throw new IllegalArgumentException("Invalid payload size range");
+        }
+
+        return new PayloadGenerator() {
+            public ByteBuffer next(long sequence) {
+                ByteBuffer data = payload.duplicate();
+                data.limit(ThreadLocalRandom.current().nextInt(min, max + 1));
+                return data;
+            }
+        };
+    }
+
+    /**
+     *  Returns a generator of payloads that start with the time they were
+     *  generated, as given by System.nanoTime, followed by the sequence
+     *  number, both as big-endian longs. A client in the same process as
+     *  the server can use the time to measure the delivery latency, see
+     *  timestampOf.
+     *
+     *  @param size The size of the payloads, at least TIMESTAMP_SIZE.
+     *  @return The generator.
+     */
+    static PayloadGenerator timestamped(final int size) {
+        if (size < TIMESTAMP_SIZE) {
+            throw new IllegalArgumentException("Payload size must be at " +
+                                               "least " + TIMESTAMP_SIZE);
+        }
+
+        return new PayloadGenerator() {
+            public ByteBuffer next(long sequence) {
+                ByteBuffer data = fill(size);
+                data.putLong(0, System.nanoTime());
+                data.putLong(8, sequence);
+                return data;
+            }
+        };
+    }
+
+    /**
+     *  Returns the time written by a timestamped generator.
+     *
+     *  @param data A payload of a timestamped generator.
+     *  @return The time the payload was generated.
+     */
+    static long timestampOf(ByteBuffer data) {
+        return data.getLong(data.position());
+    }
+
+    private static ByteBuffer fill(int size) {
+        ByteBuffer payload = ByteBuffer.allocate(size);
+
+        for (int i = 0; i < size; i++) {
+            payload.put((byte)('a' + i % 26));
+        }
+
+        payload.flip();
+        return payload;
+    }
+}
@@ -0,0 +1,229 @@
+package com.hydna.testing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ *  This class is used internally by the TestServer class.
+ *  A client connection to the server. Frames are read on one thread,
+ *  and written on another, which writes everything that is queued
+ *  before flushing, so that fan-out to a slow client does not hold up
+ *  the sender.
+ */
+class TestConnection {
+
+    // Closes the writer
+    private static final byte[] CLOSE = new byte[0];
+
+    private final TestServer m_server;
+    private final Socket m_socket;
+
+    private final BlockingQueue<byte[]> m_outbound;
+    private final Set<Integer> m_channels;
+
+    private volatile boolean m_closed = false;
+
+    TestConnection(TestServer server, Socket socket) {
+        m_server = server;
+        m_socket = socket;
+        m_outbound = new LinkedBlockingQueue<byte[]>();
+        m_channels = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     *  Start the reader and the writer threads of the connection.
+     */
+    void start() {
+        String name = "hydna-test-" + m_socket.getPort();
+
+        new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, name + "-reader").start();
+
+        new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, name + "-writer").start();
+    }
+
+    /**
+     *  Queue a frame for writing, after the latency of the server.
+     *
+     *  @param frame The encoded frame.
+     */
+    void send(byte[] frame) {
+        if (m_closed == false) {
+            m_server.delay(this, frame);
+        }
+    }
+
+    /**
+     *  Queue a frame for writing right away.
+     *
+     *  @param frame The encoded frame.
+     */
+    void enqueue(byte[] frame) {
+        if (m_closed == false) {
+            m_outbound.add(frame);
+        }
+    }
+
+    boolean isOpen(int channelPtr) {
+        return m_channels.contains(channelPtr);
+    }
+
+    boolean open(int channelPtr) {
+        return m_channels.add(channelPtr);
+    }
+
+    boolean close(int channelPtr) {
+        return m_channels.remove(channelPtr);
+    }
+
+    Set<Integer> getChannels() {
+        return m_channels;
+    }
+
+    /**
+     *  Close the connection.
+     */
+    void close() {
+        if (m_closed) {
+            return;
+        }
+
+        m_closed = true;
+        m_outbound.add(CLOSE);
+
+        try {
+            m_socket.close();
+        } catch (IOException e) {
+        }
+
+        m_server.removeConnection(this);
+    }
+
+    private void read() {
+        DataInputStream in;
+        byte[] body;
+        int length;
+
+        try {
+            in = new DataInputStream(
+                new BufferedInputStream(m_socket.getInputStream()));
+
+            if (handshake(in) == false) {
+                // Closed by the writer, once the response is written
+                m_outbound.add(CLOSE);
+                return;
+            }
+
+            for (;;) {
+                length = in.readUnsignedShort();
+
+                if (length < TestServer.HEADER_SIZE) {
+                    break;
+                }
+
+                body = new byte[length];
+                in.readFully(body);
+                m_server.handleFrame(this, ByteBuffer.wrap(body));
+            }
+        } catch (IOException e) {
+        }
+
+        close();
+    }
+
+    /**
+     *  Read the upgrade request, and accept it if it asks for winksock/1.
+     */
+    private boolean handshake(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        boolean upgrade = false;
+        boolean first = true;
+        int c;
+
+        for (;;) {
+            c = in.read();
+
+            if (c == -1) {
+                return false;
+            }
+
+            if (c != '\n') {
+                if (c != '\r') {
+                    line.append((char)c);
+                }
+                continue;
+            }
+
+            if (line.length() == 0) {
+                break;
+            }
+
+            if (first == false &&
+                line.toString().toLowerCase().equals("upgrade: winksock/1")) {
+                upgrade = true;
+            }
+
+            first = false;
+            line.setLength(0);
+        }
+
+        if (upgrade == false) {
+            writeRaw("HTTP/1.1 400 Bad Request\r\n\r\n");
+            return false;
+        }
+
+        writeRaw("HTTP/1.1 101 Switching Protocols\r\n" +
+                 "Upgrade: winksock/1\r\n" +
+                 "Connection: upgrade\r\n\r\n");
+        return true;
+    }
+
+    private void writeRaw(String response) {
+        m_outbound.add(response.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void write() {
+        OutputStream out;
+        byte[] frame;
+
+        try {
+            out = new BufferedOutputStream(m_socket.getOutputStream(), 0x10000);
+
+            for (;;) {
+                frame = m_outbound.take();
+
+                do {
+                    if (frame == CLOSE) {
+                        // Such as the response to a failed handshake
+                        out.flush();
+                        return;
+                    }
+                    out.write(frame);
+                } while ((frame = m_outbound.poll()) != null);
+
+                out.flush();
+            }
+        } catch (IOException e) {
+        } catch (InterruptedException e) {
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package com.hydna.testing;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  A server that speaks the protocol of the library, for integration and
+ *  load tests against localhost. It can be embedded in a test, or run on
+ *  its own with "java com.hydna.testing.TestServer [port]".
+ *
+ *  The server accepts the winksock/1 upgrade, resolves every path to a
+ *  channel pointer, and allows every open, except for paths that were
+ *  denied with denyPath. Data and emitted signals are delivered to all
+ *  connections that have the channel open, which includes the sender,
+ *  so a single client sees its messages echoed. Data on paths that
+ *  start with the broadcast prefix is instead sent on channel 0, to all
+ *  channels of every connection. A client that ends a channel gets the
+ *  end signal back, and keepalives are echoed.
+ *
+ *  The settings may be changed while the server is running.
+ */
+public class TestServer implements AutoCloseable {
+
+    static final int HEADER_SIZE = 0x05;
+
+    static final int KEEPALIVE = 0x00;
+    static final int OPEN = 0x01;
+    static final int DATA = 0x02;
+    static final int SIGNAL = 0x03;
+    static final int RESOLVE = 0x04;
+
+    static final int OPEN_ALLOW = 0x0;
+    static final int OPEN_DENY = 0x7;
+
+    static final int SIG_EMIT = 0x0;
+    static final int SIG_END = 0x1;
+
+    static final int UTF8 = 0x0;
+    static final int BINARY = 0x1;
+
+    private final int m_requestedPort;
+    private ServerSocket m_serverSocket;
+    private ScheduledExecutorService m_scheduler;
+
+    private final Map<String, Integer> m_pointers;
+    private final Map<Integer, String> m_paths;
+    private final AtomicInteger m_nextPointer;
+    private final Set<TestConnection> m_connections;
+    private final List<String> m_deniedPaths;
+
+    private volatile long m_latency = 0;
+    private volatile int m_fanOut = 1;
+    private volatile String m_broadcastPrefix = null;
+    private volatile String m_welcomeMessage = "welcome";
+
+    /**
+     *  Initializes a server on a free port.
+     */
+    public TestServer() {
+        this(0);
+    }
+
+    /**
+     *  Initializes a server.
+     *
+     *  @param port The port to listen on, or 0 for a free port.
+     */
+    public TestServer(int port) {
+        m_requestedPort = port;
+        m_pointers = new ConcurrentHashMap<String, Integer>();
+        m_paths = new ConcurrentHashMap<Integer, String>();
+        m_nextPointer = new AtomicInteger(1);
+        m_connections = ConcurrentHashMap.newKeySet();
+        m_deniedPaths = new CopyOnWriteArrayList<String>();
+    }
+
+    /**
+     *  Set the delay before the server answers or delivers a frame. The
+     *  delay applies to every frame the server sends.
+     *
+     *  @param delay The delay, or 0 for none.
+     *  @param unit The unit of the delay.
+     */
+    public void setLatency(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Latency cannot be negative");
+        }
+        m_latency = unit.toNanos(delay);
+    }
+
+    /**
+     *  Set how many copies of each data message and signal are delivered
+     *  to each receiving connection. Defaults to 1.
+     *
+     *  @param copies The number of copies.
+     */
+    public void setFanOut(int copies) {
+        if (copies < 1) {
+            throw new IllegalArgumentException("Fan-out must be at least 1");
+        }
+        m_fanOut = copies;
+    }
+
+    /**
+     *  Set the prefix of paths whose data is broadcast on channel 0.
+     *
+     *  @param prefix The prefix, or null to not broadcast.
+     */
+    public void setBroadcastPrefix(String prefix) {
+        m_broadcastPrefix = prefix;
+    }
+
+    /**
+     *  Set the message sent with an allowed open.
+     *
+     *  @param message The message.
+     */
+    public void setWelcomeMessage(String message) {
+        m_welcomeMessage = message;
+    }
+
+    /**
+     *  Deny opens of paths that start with a prefix.
+     *
+     *  @param prefix The prefix of the paths to deny.
+     */
+    public void denyPath(String prefix) {
+        m_deniedPaths.add(prefix);
+    }
+
+    /**
+     *  Start accepting connections.
+     */
+    public synchronized void start() throws IOException {
+        if (m_serverSocket != null) {
+            throw new IllegalStateException("Server is already started");
+        }
+
+        m_serverSocket = new ServerSocket();
+        m_serverSocket.setReuseAddress(true);
+        m_serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                  m_requestedPort));
+
+        m_scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "hydna-test-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        final ServerSocket serverSocket = m_serverSocket;
+
+        new Thread(new Runnable() {
+            public void run() {
+                accept(serverSocket);
+            }
+        }, "hydna-test-acceptor").start();
+    }
+
+    /**
+     *  Returns the port the server listens on.
+     *
+     *  @return The port.
+     */
+    public synchronized int getPort() {
+        if (m_serverSocket == null) {
+            throw new IllegalStateException("Server is not started");
+        }
+        return m_serverSocket.getLocalPort();
+    }
+
+    /**
+     *  Returns the URL of a channel on the server, for Channel.connect.
+     *
+     *  @param path The path of the channel.
+     *  @return The URL.
+     */
+    public String getUrl(String path) {
+        if (path.startsWith("/") == false) {
+            path = "/" + path;
+        }
+        return "localhost:" + getPort() + path;
+    }
+
+    /**
+     *  Returns the number of connected clients.
+     *
+     *  @return The number of connections.
+     */
+    public int getConnectionCount() {
+        return m_connections.size();
+    }
+
+    /**
+     *  Send data to all connections that have a channel open.
+     *
+     *  @param path The path of the channel.
+     *  @param data The data.
+     */
+    public void publish(String path, ByteBuffer data) {
+        deliver(path, BINARY, DATA, 0, data);
+    }
+
+    /**
+     *  Send a UTF-8 message to all connections that have a channel open.
+     *
+     *  @param path The path of the channel.
+     *  @param message The message.
+     */
+    public void publish(String path, String message) {
+        deliver(path, UTF8, DATA, 0,
+                ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     *  Emit a signal to all connections that have a channel open.
+     *
+     *  @param path The path of the channel.
+     *  @param message The message of the signal.
+     */
+    public void emit(String path, String message) {
+        deliver(path, UTF8, SIGNAL, SIG_EMIT,
+                ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     *  Publish generated payloads on a channel at a fixed rate, until
+     *  the returned future is cancelled or the server is closed.
+     *
+     *  @param path The path of the channel.
+     *  @param generator The generator of the payloads.
+     *  @param rate The number of payloads per second.
+     *  @return A future that stops the generator when cancelled.
+     */
+    public Future<?> generate(final String path,
+                              final PayloadGenerator generator,
+                              final int rate) {
+        final long period;
+        final long start;
+
+        if (rate < 1) {
+            throw new IllegalArgumentException("Rate must be at least 1");
+        }
+
+        // Payloads are sent in batches, at most once per millisecond
+        period = Math.max(TimeUnit.SECONDS.toNanos(1) / rate,
+                          TimeUnit.MILLISECONDS.toNanos(1));
+        start = System.nanoTime();
+
+        return scheduler().scheduleAtFixedRate(new Runnable() {
+            private long m_sequence = 0;
+
+            public void run() {
+                long due = (System.nanoTime() - start) * rate /
+                           TimeUnit.SECONDS.toNanos(1);
+
+                while (m_sequence < due) {
+                    publish(path, generator.next(m_sequence++));
+                }
+            }
+        }, 0, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     *  Close all client connections, as if the network was lost. The
+     *  server keeps accepting new connections, so clients that reconnect
+     *  can open their channels again.
+     */
+    public void dropConnections() {
+        for (TestConnection connection : m_connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     *  Stop the server, and close all connections.
+     */
+    public void close() {
+        ServerSocket serverSocket;
+        ScheduledExecutorService scheduler;
+
+        synchronized (this) {
+            serverSocket = m_serverSocket;
+            scheduler = m_scheduler;
+            m_serverSocket = null;
+            m_scheduler = null;
+        }
+
+        if (serverSocket == null) {
+            return;
+        }
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+
+        scheduler.shutdownNow();
+
+        for (TestConnection connection : m_connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     *  Handle a frame received on a connection.
+     *
+     *  @param connection The connection.
+     *  @param frame The frame, without the length prefix.
+     */
+    void handleFrame(TestConnection connection, ByteBuffer frame) {
+        int channelPtr = frame.getInt();
+        int of = frame.get() & 0xFF;
+        int ctype = (of >> 6) & 0x1;
+        int op = (of >> 3) & 0x7;
+        int flag = of & 0x7;
+        ByteBuffer payload = frame.slice();
+        String path;
+
+        switch (op) {
+
+            case KEEPALIVE:
+            connection.send(encode(0, UTF8, KEEPALIVE, 0, payload));
+            break;
+
+            case RESOLVE:
+            path = StandardCharsets.US_ASCII.decode(payload.duplicate())
+                                            .toString();
+            connection.send(encode(resolve(path), UTF8, RESOLVE,
+                                   OPEN_ALLOW, payload));
+            break;
+
+            case OPEN:
+            open(connection, channelPtr);
+            break;
+
+            case DATA:
+            if (connection.isOpen(channelPtr)) {
+                deliver(m_paths.get(channelPtr), ctype, DATA, flag, payload);
+            }
+            break;
+
+            case SIGNAL:
+            if (flag == SIG_EMIT && connection.isOpen(channelPtr)) {
+                deliver(m_paths.get(channelPtr), ctype, SIGNAL, flag,
+                        payload);
+            } else if (flag == SIG_END && connection.close(channelPtr)) {
+                connection.send(encode(channelPtr, UTF8, SIGNAL, SIG_END,
+                                       null));
+            }
+            break;
+        }
+    }
+
+    /**
+     *  Write a frame to a connection after the latency of the server.
+     */
+    void delay(final TestConnection connection, final byte[] frame) {
+        long latency = m_latency;
+
+        if (latency == 0) {
+            connection.enqueue(frame);
+            return;
+        }
+
+        try {
+            scheduler().schedule(new Runnable() {
+                public void run() {
+                    connection.enqueue(frame);
+                }
+            }, latency, TimeUnit.NANOSECONDS);
+        } catch (IllegalStateException e) {
+            // The server is closed
+        }
+    }
+
+    void removeConnection(TestConnection connection) {
+        m_connections.remove(connection);
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        TestConnection connection;
+        Socket socket;
+
+        for (;;) {
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return;
+            }
+
+            connection = new TestConnection(this, socket);
+            m_connections.add(connection);
+            connection.start();
+        }
+    }
+
+    private int resolve(String path) {
+        Integer channelPtr = m_pointers.get(path);
+
+        if (channelPtr == null) {
+            synchronized (m_pointers) {
+                channelPtr = m_pointers.get(path);
+
+                if (channelPtr == null) {
+                    channelPtr = m_nextPointer.getAndIncrement();
+                    m_paths.put(channelPtr, path);
+                    m_pointers.put(path, channelPtr);
+                }
+            }
+        }
+
+        return channelPtr;
+    }
+
+    private void open(TestConnection connection, int channelPtr) {
+        String path = m_paths.get(channelPtr);
+        String message;
+        int flag = OPEN_ALLOW;
+
+        if (path == null) {
+            flag = OPEN_DENY;
+            message = "Unknown channel";
+        } else if (isDenied(path)) {
+            flag = OPEN_DENY;
+            message = "Access denied";
+        } else {
+            connection.open(channelPtr);
+            message = m_welcomeMessage;
+        }
+
+        connection.send(encode(channelPtr, UTF8, OPEN, flag,
+                               ByteBuffer.wrap(message.getBytes(
+                                   StandardCharsets.UTF_8))));
+    }
+
+    private boolean isDenied(String path) {
+        for (String prefix : m_deniedPaths) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Deliver a data frame or a signal to the connections that have the
+     *  channel open, or to every connection if the path is broadcast.
+     */
+    private void deliver(String path,
+                         int ctype,
+                         int op,
+                         int flag,
+                         ByteBuffer payload) {
+        Integer channelPtr;
+        String prefix = m_broadcastPrefix;
+        boolean broadcast;
+        byte[] frame;
+        int copies = m_fanOut;
+
+        if (path == null || (channelPtr = m_pointers.get(path)) == null) {
+            return;
+        }
+
+        broadcast = op == DATA && prefix != null && path.startsWith(prefix);
+        frame = encode(broadcast ? 0 : channelPtr, ctype, op, flag, payload);
+
+        for (TestConnection connection : m_connections) {
+            if (broadcast ? connection.getChannels().isEmpty()
+                          : connection.isOpen(channelPtr) == false) {
+                continue;
+            }
+
+            for (int i = 0; i < copies; i++) {
+                connection.send(frame);
+            }
+        }
+    }
+
+    private ScheduledExecutorService scheduler() {
+        ScheduledExecutorService scheduler;
+
+        synchronized (this) {
+            scheduler = m_scheduler;
+        }
+
+        if (scheduler == null) {
+            throw new IllegalStateException("Server is not started");
+        }
+
+        return scheduler;
+    }
+
+    /**
+     *  Encode a frame, including the length prefix.
+     */
+    static byte[] encode(int channelPtr,
+                         int ctype,
+                         int op,
+                         int flag,
+                         ByteBuffer payload) {
+        int size = payload == null ? 0 : payload.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(2 + HEADER_SIZE + size);
+
+        frame.putShort((short)(HEADER_SIZE + size));
+        frame.putInt(channelPtr);
+        frame.put((byte)((ctype << 6) | (op << 3) | flag));
+
+        if (payload != null) {
+            frame.put(payload.duplicate());
+        }
+
+        return frame.array();
+    }
+
+    /**
+     *  Run a server until the process is stopped.
+     *
+     *  @param args The port to listen on, 7010 by default.
+     */
+    public static void main(String[] args) throws IOException {
+        TestServer server;
+
+        server = new TestServer(args.length > 0 ?
+                                Integer.parseInt(args[0]) : 7010);
+        server.start();
+
+        System.out.println("Listening on localhost:" + server.getPort());
+    }
+}
@@ -0,0 +1,62 @@
+package com.hydna;
+
+import com.hydna.testing.TestServer;
+
+/**
+ *  Checks that a path is opened only once per server when channels are
+ *  spread over a pool of connections.
+ */
+public class ChannelPoolTest {
+
+    public static void main(String[] args) throws Exception {
+        TestServer server = new TestServer();
+        String url;
+        Channel first;
+        Channel second;
+        Channel third;
+        Channel duplicate;
+        boolean failed = false;
+
+        server.start();
+        url = "localhost:" + server.getPort();
+
+        HydnaConfig.setConnectionsPerEndpoint(2);
+        HydnaConfig.setConnectionPlacement(ConnectionPlacement.LEAST_LOADED);
+
+        try {
+            first = new Channel();
+            first.connect(url + "/pool", ChannelMode.READWRITE);
+
+            // Placed on the other connection, which has no channels
+            second = new Channel();
+            second.connect(url + "/other", ChannelMode.READWRITE);
+
+            // Back on the first connection, so that the least loaded
+            // connection is the one without the path
+            third = new Channel();
+            third.connect(url + "/third", ChannelMode.READWRITE);
+
+            Check.equal(2, server.getConnectionCount(), "Connections");
+
+            duplicate = new Channel();
+
+            try {
+                duplicate.connect(url + "/pool", ChannelMode.READWRITE);
+            } catch (ChannelError e) {
+                failed = true;
+            }
+
+            Check.check(failed, "Path opened twice on the pool");
+
+            first.close();
+
+            duplicate = new Channel();
+            duplicate.connect(url + "/pool", ChannelMode.READWRITE);
+            duplicate.close();
+            second.close();
+            third.close();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.hydna;
+
+/**
+ *  Assertions for the tests. The tests are plain programs, run by
+ *  `make test`, that exit with an exception when a check fails.
+ */
+final class Check {
+
+    private Check() {
+    }
+
+    static void check(boolean condition, String message) {
+        if (condition == false) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void equal(long expected, long actual, String message) {
+        if (expected != actual) {
+            throw new AssertionError(message + ": expected " + expected +
+                                     ", was " + actual);
+        }
+    }
+}
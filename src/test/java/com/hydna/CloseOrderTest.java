@@ -0,0 +1,62 @@
+package com.hydna;
+
+import java.util.concurrent.TimeUnit;
+
+import com.hydna.testing.TestServer;
+
+/**
+ *  Checks that closing a channel does not overtake the data that the
+ *  channel has already queued, at any priority.
+ */
+public class CloseOrderTest {
+
+    private static final int MESSAGES = 20;
+
+    public static void main(String[] args) throws Exception {
+        TestServer server = new TestServer();
+        Channel sender;
+        Channel observer;
+        ChannelEvent event;
+        int received = 0;
+
+        server.start();
+
+        // Queue everything before the first flush
+        HydnaConfig.setFlushDelay(200000);
+
+        try {
+            // Another host name for the same server, so that the
+            // observer gets a connection of its own
+            observer = new Channel();
+            observer.connect("127.0.0.1:" + server.getPort() + "/order",
+                             ChannelMode.READ);
+
+            sender = new Channel();
+            sender.connect("localhost:" + server.getPort() + "/order",
+                           ChannelMode.READWRITE);
+
+            for (int i = 0; i < MESSAGES; i++) {
+                sender.send("message " + i, i % 2 == 0 ? 0 : 6);
+            }
+
+            sender.close();
+
+            while ((event = observer.nextEvent(5, TimeUnit.SECONDS)) != null) {
+                if (event instanceof ChannelData) {
+                    received++;
+                }
+
+                if (received == MESSAGES) {
+                    break;
+                }
+            }
+
+            Check.equal(MESSAGES, received, "Messages received before close");
+
+            observer.close();
+        } finally {
+            HydnaConfig.setFlushDelay(0);
+            server.close();
+        }
+    }
+}
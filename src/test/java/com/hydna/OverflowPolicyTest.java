@@ -0,0 +1,154 @@
+package com.hydna;
+
+import java.util.concurrent.TimeUnit;
+
+import com.hydna.testing.TestServer;
+
+/**
+ *  Checks what each overflow policy does when events arrive faster than
+ *  they are consumed.
+ */
+public class OverflowPolicyTest {
+
+    private static final int CAPACITY = 5;
+    private static final int MESSAGES = 20;
+
+    public static void main(String[] args) throws Exception {
+        TestServer server = new TestServer();
+
+        server.start();
+
+        try {
+            checkDropNewest(server);
+            checkDropOldest(server);
+            checkBlock(server);
+            checkFail(server);
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void checkDropNewest(TestServer server) throws Exception {
+        Channel channel = open(server, "/newest", OverflowPolicy.DROP_NEWEST);
+
+        flood(server, "/newest");
+        awaitDropped(channel, MESSAGES - CAPACITY);
+
+        for (int i = 0; i < CAPACITY; i++) {
+            Check.check(("message " + i).equals(nextMessage(channel)),
+                        "DROP_NEWEST kept the first messages");
+        }
+
+        Check.check(channel.nextEvent(100, TimeUnit.MILLISECONDS) == null,
+                    "DROP_NEWEST queued no more than the capacity");
+
+        channel.close();
+    }
+
+    private static void checkDropOldest(TestServer server) throws Exception {
+        Channel channel = open(server, "/oldest", OverflowPolicy.DROP_OLDEST);
+
+        flood(server, "/oldest");
+        awaitDropped(channel, MESSAGES - CAPACITY);
+
+        for (int i = MESSAGES - CAPACITY; i < MESSAGES; i++) {
+            Check.check(("message " + i).equals(nextMessage(channel)),
+                        "DROP_OLDEST kept the last messages");
+        }
+
+        Check.check(channel.nextEvent(100, TimeUnit.MILLISECONDS) == null,
+                    "DROP_OLDEST queued no more than the capacity");
+
+        channel.close();
+    }
+
+    private static void checkBlock(TestServer server) throws Exception {
+        Channel channel = open(server, "/block", OverflowPolicy.BLOCK);
+        Channel other;
+
+        // Shares the connection, so it is held back while reading is
+        // paused
+        other = new Channel();
+        other.connect(server.getUrl("/block-other"), ChannelMode.READ);
+
+        flood(server, "/block");
+        server.publish("/block-other", "after");
+
+        Check.check(other.nextEvent(500, TimeUnit.MILLISECONDS) == null,
+                    "Reading paused while the queue is full");
+
+        for (int i = 0; i < MESSAGES; i++) {
+            Check.check(("message " + i).equals(nextMessage(channel)),
+                        "BLOCK delivered every message in order");
+        }
+
+        Check.equal(0, channel.getDroppedEvents(), "Dropped events");
+        Check.check("after".equals(nextMessage(other)),
+                    "Reading resumed once the queue drained");
+
+        other.close();
+        channel.close();
+    }
+
+    private static void checkFail(TestServer server) throws Exception {
+        Channel channel = open(server, "/fail", OverflowPolicy.FAIL);
+        ChannelError error = null;
+
+        flood(server, "/fail");
+
+        // The queue is cleared, and the error is raised once the server
+        // has acknowledged the end signal
+        try {
+            while (channel.nextEvent(5, TimeUnit.SECONDS) != null) {
+            }
+        } catch (ChannelError e) {
+            error = e;
+        }
+
+        Check.check(error != null, "FAIL raised an error");
+        Check.check("Event queue overflow".equals(error.getMessage()),
+                    "Unexpected error: " + error.getMessage());
+        Check.check(channel.isConnected() == false, "FAIL closed the channel");
+    }
+
+    private static Channel open(TestServer server, String path, int policy)
+        throws ChannelError, InterruptedException {
+        Channel channel = new Channel();
+
+        channel.setEventQueueCapacity(CAPACITY, 0);
+        channel.setOverflowPolicy(policy);
+        channel.connect(server.getUrl(path), ChannelMode.READ);
+
+        return channel;
+    }
+
+    private static void flood(TestServer server, String path) {
+        for (int i = 0; i < MESSAGES; i++) {
+            server.publish(path, "message " + i);
+        }
+    }
+
+    private static void awaitDropped(Channel channel, long dropped)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (channel.getDroppedEvents() < dropped &&
+               System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+
+        Check.equal(dropped, channel.getDroppedEvents(), "Dropped events");
+    }
+
+    private static String nextMessage(Channel channel) throws Exception {
+        ChannelEvent event;
+
+        while ((event = channel.nextEvent(5, TimeUnit.SECONDS)) != null) {
+            if (event instanceof ChannelData) {
+                return event.getString();
+            }
+        }
+
+        return null;
+    }
+}
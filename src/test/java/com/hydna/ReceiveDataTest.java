@@ -0,0 +1,74 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.hydna.testing.TestServer;
+
+/**
+ *  Checks that received payloads, which are sliced from direct chunks,
+ *  are handed out by getData as buffers whose array starts with the
+ *  content.
+ */
+public class ReceiveDataTest {
+
+    private static final int MESSAGES = 3;
+
+    public static void main(String[] args) throws Exception {
+        TestServer server = new TestServer();
+        Channel channel;
+        ChannelEvent event;
+        ByteBuffer data;
+        String expected;
+        int received = 0;
+
+        // Before the first connection, so the chunks are direct
+        HydnaConfig.setDirectBuffers(true);
+
+        server.start();
+
+        try {
+            channel = new Channel();
+            channel.connect(server.getUrl("/data"), ChannelMode.READ);
+
+            for (int i = 0; i < MESSAGES; i++) {
+                server.publish("/data", "message " + i);
+            }
+
+            while (received < MESSAGES &&
+                   (event = channel.nextEvent(5, TimeUnit.SECONDS)) != null) {
+                if ((event instanceof ChannelData) == false) {
+                    continue;
+                }
+
+                expected = "message " + received++;
+
+                Check.check(event.getDataWithoutCopy().isDirect(),
+                            "Payload was sliced from a direct chunk");
+
+                data = event.getData();
+
+                Check.check(data.hasArray(), "getData has an array");
+                Check.equal(0, data.arrayOffset(), "Array offset");
+                Check.equal(0, data.position(), "Position");
+                Check.equal(expected.length(), data.array().length,
+                            "Array length");
+                Check.check(expected.equals(new String(data.array(),
+                                                       StandardCharsets.UTF_8)),
+                            "Array holds the payload");
+                Check.check(data == event.getData(),
+                            "The copy is made once");
+                Check.check(expected.equals(event.getString()),
+                            "getString after getData");
+            }
+
+            Check.equal(MESSAGES, received, "Messages received");
+
+            channel.close();
+        } finally {
+            HydnaConfig.setDirectBuffers(false);
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.hydna;
+
+import java.util.concurrent.TimeUnit;
+
+import com.hydna.testing.TestServer;
+
+/**
+ *  Checks that a lost connection is reconnected, that its channel is
+ *  told when it is reconnecting and when it is resumed, and that the
+ *  channel refuses to send until it is open on the new connection.
+ */
+public class ReconnectTest {
+
+    public static void main(String[] args) throws Exception {
+        TestServer server = new TestServer();
+        Channel channel;
+        ChannelEvent event;
+        int refused = 0;
+
+        server.start();
+
+        HydnaConfig.setReconnect(true);
+        HydnaConfig.setReconnectBackoff(50, 200);
+
+        try {
+            channel = new Channel();
+            channel.connect(server.getUrl("/reconnect"),
+                            ChannelMode.READWRITE);
+
+            // Hold the open response, so that the channel waits to be
+            // resumed on a connection that is already handshaked
+            server.setLatency(300, TimeUnit.MILLISECONDS);
+            server.dropConnections();
+
+            event = channel.nextEvent(5, TimeUnit.SECONDS);
+            Check.check(event instanceof ChannelReconnecting,
+                        "Expected ChannelReconnecting, got " + event);
+
+            while ((event = channel.nextEvent(10,
+                                              TimeUnit.MILLISECONDS)) == null) {
+                Check.check(channel.send("too early") == false,
+                            "Sent before the channel was resumed");
+                Check.check(channel.isWritable() == false,
+                            "Writable before the channel was resumed");
+                refused++;
+            }
+
+            Check.check(event instanceof ChannelResumed,
+                        "Expected ChannelResumed, got " + event);
+            Check.check(refused > 0, "Nothing was sent while reconnecting");
+
+            server.setLatency(0, TimeUnit.MILLISECONDS);
+
+            Check.check(channel.send("resumed"), "Send after resume");
+            event = channel.nextEvent(5, TimeUnit.SECONDS);
+            Check.check(event != null && "resumed".equals(event.getString()),
+                        "Expected the echo, got " + event);
+
+            channel.close();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.hydna.testing.TestServer;
+
+/**
+ *  Checks that a buffer passed to send can be reused as soon as send
+ *  returns.
+ */
+public class SendCopyTest {
+
+    private static final int MESSAGES = 20;
+
+    public static void main(String[] args) throws Exception {
+        TestServer server = new TestServer();
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        Channel channel;
+        ChannelEvent event;
+        ByteBuffer data;
+
+        server.start();
+
+        // Queue everything before the first flush
+        HydnaConfig.setFlushDelay(200000);
+
+        try {
+            channel = new Channel();
+            channel.connect(server.getUrl("/copy"), ChannelMode.READWRITE);
+
+            for (int i = 0; i < MESSAGES; i++) {
+                buffer.clear();
+                buffer.putInt(0, i);
+                channel.send(buffer);
+            }
+
+            // The sender gets its own messages back
+            for (int i = 0; i < MESSAGES; i++) {
+                event = channel.nextEvent(5, TimeUnit.SECONDS);
+
+                Check.check(event != null, "Message " + i + " not received");
+                data = event.getData();
+                Check.equal(i, data.getInt(data.position()), "Message");
+            }
+
+            channel.close();
+        } finally {
+            HydnaConfig.setFlushDelay(0);
+            server.close();
+        }
+    }
+}